@@ -20,6 +20,23 @@ public class AckCellTextUI{
     return new Scanner(new File(fname), "UTF-8").useDelimiter("\\Z").next();
   }
 
+  // Journal changes are fsynced in groups this often and the journal
+  // is folded into a fresh snapshot this often
+  static final long JOURNAL_COMMIT_MILLIS = 50;
+  static final long JOURNAL_SNAPSHOT_MILLIS = 60000;
+
+  private static void closeJournal(SheetJournal journal){
+    if(journal == null){
+      return;
+    }
+    try{
+      journal.close();
+    }
+    catch(IOException e){
+      System.out.printf("Could not close journal: %s\n",e.getMessage());
+    }
+  }
+
   public static void echo(String s){
     System.out.println(s);
   }
@@ -27,6 +44,7 @@ public class AckCellTextUI{
 
   public static void main(String args[]){
     Spreadsheet sheet = new Spreadsheet();
+    SheetJournal journal = null;
 
     System.out.println("AckCell Spreadsheet v0.1");
 
@@ -36,6 +54,7 @@ public class AckCellTextUI{
     System.out.println("delete id       :  Delete contents cell with given id");
     System.out.println("save filename   :  Save the current sheet to named file");
     System.out.println("load filename   :  Discard the current sheet and load from the named file");
+    System.out.println("journal dirname :  Recover the sheet from the named directory and journal changes to it");
     System.out.println("quit            :  Quit program");
     System.out.println();
 
@@ -54,13 +73,19 @@ public class AckCellTextUI{
       if(command.equals("quit")){
         echo(command);
         System.out.println("Quitting...");
+        closeJournal(journal);
       }
       else if(command.equals("set")){
         String id = input.next();
         String contents = input.nextLine().trim();
         try{
           echo(String.format("%s %s %s",command,id,contents));
-          sheet.setCell(id,contents);
+          if(journal != null){
+            journal.setCell(id,contents);
+          }
+          else{
+            sheet.setCell(id,contents);
+          }
         }
         catch(Exception e){
           System.out.printf("Could not set cell %s to %s:\n%s\n",
@@ -69,7 +94,12 @@ public class AckCellTextUI{
       }
       else if(command.equals("delete")){
         String id = input.next();
-        sheet.deleteCell(id);
+        if(journal != null){
+          journal.deleteCell(id);
+        }
+        else{
+          sheet.deleteCell(id);
+        }
       }
       else if(command.equals("save")){
         String filename = input.nextLine().trim();
@@ -93,12 +123,31 @@ public class AckCellTextUI{
         try{
           String saveString = slurp(filename);
           sheet = Spreadsheet.fromSaveString(saveString);
+          closeJournal(journal);
+          journal = null;
           System.out.printf("done.\n");
         }
         catch(Exception e){
           System.out.printf("\nCould not load sheet: %s\n",e.getMessage());
         }
       }
+      else if(command.equals("journal")){
+        String dirname = input.nextLine().trim();
+        echo(String.format("%s %s",command,dirname));
+        System.out.printf("Recovering sheet from '%s' directory... ",dirname);
+        try{
+          SheetJournal opened = SheetJournal.open(new File(dirname).toPath(),
+                                                  JOURNAL_COMMIT_MILLIS,
+                                                  JOURNAL_SNAPSHOT_MILLIS);
+          closeJournal(journal);
+          journal = opened;
+          sheet = journal.sheet();
+          System.out.printf("done.\n");
+        }
+        catch(Exception e){
+          System.out.printf("\nCould not open journal: %s\n",e.getMessage());
+        }
+      }
       else{
         echo(String.format("%s",command));
         System.out.printf("Unrecognized command '%s'\n",command);
@@ -1,295 +1,686 @@
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
-// Spreadsheet Cells can be one of three different kinds:
-// - Formulas always start with the = sign.  If the 0th character in
-//   contents is a '=', use the method
-//     FNode root = FNode.parseFormulaString(contents);
-//   to create a formula tree of FNodes for later use.
-// - Numbers can be parsed as doubles using the
-//   Double.parseDouble(contents) method.  
-// - Strings are anything else aside from Formulas and Numbers and
-//   store only the contents given.
-//
-// Cells are largely immutable: once the contents of a cell are set,
-// they do not change except to reflect movement of upstream dependent
-// cells in a formula.  The value of a formula cell may change after
-// if values change in its dependent cells. To make changes in a
-// spreadsheet, one will typically create a new Cell with different
-// contents using the method
-//   newCell = Cell.make(contents);
-//
-// This class may contain nested static subclasses to implement the
-// Different kinds of cells.
-public class Cell {
-	private String cellContents;
-	private String cellKind;
-	private boolean isError;
-	private double numberValue;
-	private FNode treeRoot;
-	
-	public Cell(String cellContents, String cellKind, boolean isError) {
-		this.cellContents = cellContents;
-		this.cellKind = cellKind;
-		this.isError = isError;
-		if (this.cellKind.equals("number")) {
-			this.numberValue = Double.parseDouble(cellContents);
-		} else if (this.cellKind.equals("formula")) {
-			treeRoot = FNode.parseFormulaString(cellContents);
-		}
-	}
-
-	// Factory method to create cells with the given contents linked to
-	// the given spreadsheet. The method is static so that one invokes
-	// it with:
-	//
-	// Cell c = Cell.make("=A21*2");
-	//
-	// The return value may be a subclass of Cell which is not possible
-	// with constructors. Call trim() on the contents string to remove
-	// whitespace at the beginning and end. If the contents is null or
-	// empty, return null. If contents is not valid, a RuntimeException
-	// is generated; this may happen if the contents is a formula that
-	// cannot be parsed by FNode.parseFormulaString(contents) which
-	// raises RuntimeExceptions for invalid syntax such as "=1 ++ 2"
-	//
-	// If the cell is a formula, it is not possible to evaluate its
-	// formula during Cell.make() as other references to other cells
-	// cannot be resolved. The formula can only be reliably evaluated
-	// after a call to cell.updateValue(cellMap) is made later. Until
-	// that time the cell should be in the ERROR state with
-	// cell.isError() == true and displayString() == "ERROR" and
-	// cell.numberValue() == null.
-	public static Cell make(String contents) {
-		// Return null for null or empty string
-		if (contents == null || contents.trim().equals("")) 
-			return null;
-		
-		try {
-			Double.parseDouble(contents.trim());
-			// Return a new numbered Cell
-			return new Cell(contents.trim(), "number", false);
-			
-		} catch (Exception e) {
-			if (contents.trim().startsWith("=")) {
-				// Formula
-				return new Cell(contents.trim(), "formula", true);
-			} else {
-				// string
-				return new Cell(contents.trim(), "string", false);
-			}
-		}
-	}
-
-	// Return the kind of the cell which is one of "string", "number",
-	// or "formula".
-	public String kind() {
-		return cellKind;
-	}
-
-	// Returns whether the cell is currently in an error state. Cells
-	// with kind() "string" and "number" are never in error. Formula
-	// cells are in error and show ERROR if their formula involves cells
-	// which are blank or have kind "string" and therefore cannot be
-	// used to calculate the value of the cell.
-	public boolean isError() {
-		return isError;
-	}
-
-	// Produce a string to display the contents of the cell. For kind()
-	// "string", this method returns the original contents of the
-	// cell. For kind "number", show the numeric value of the cell with
-	// 1 decimal point of accuracy. For formula cells which are in
-	// error, return the string "ERROR". Formula cells which are not in
-	// error return a string of their numeric value with 1 decimal digit
-	// of accuracy which is easiest to produce with the String.format()
-	// method.
-	//
-	// Target Complexity: O(1)
-	// Avoid repeated formula evaluation by traversing the formula tree
-	// only in updateValue()
-	public String displayString() {
-		if (kind().equals("string")) {
-			// string
-			return cellContents;
-		} else if (kind().equals("number")) {
-			// number
-			return String.format("%.1f", numberValue);
-		} else {
-			// Formula
-			if (isError())
-				return "ERROR";
-			else 
-				return String.format("%.1f", numberValue);
-		}
-	}
-
-	// Return the numeric value of this cell. If the cell is kind
-	// "number", this is the double value of its contents. For kind
-	// "formula", it is the evaluated value of the formula. For kind
-	// "string" return null.
-	//
-	// Target Complexity: O(1)
-	// Avoid repeated formula evaluation by traversing the formula tree
-	// only in updateValue()
-	public Double numberValue() {
-		if (kind().equals("string")) {
-			// string
-			return null;
-		} else if (kind().equals("formula")) {
-			if (isError())
-				return null;
-		}
-		return numberValue;
-	}
-
-	// Return the raw contents of the cell. For kind() "number" and
-	// "string", this is the original contents entered into the cell.
-	// For kind() "formula", this is the text of the formula.
-	//
-	// Target Complexity: O(1)
-	public String contents() {
-		return cellContents;
-	}
-
-	// Update the value of the cell value. If the cell is not a formula
-	// (string and number), do nothing. Formulas should re-evaluate the
-	// stored formula tree to determine a numeric value. This method
-	// may be called when the cell is initially created to give it a
-	// numeric value in which case an empty map should be used.
-	// Whenever an upstream cell changes value, the housing spreadsheet
-	// will call this method to recompute the numeric value to reflect
-	// the change. This method should not raise any exceptions if there
-	// are problems evaluating the formula due to other unusable cells.
-	// It should set the state of this cell to be in error so that a
-	// call to isError() returns true. If the cell formula is
-	// successfully evaluated, isError() should return false.
-	//
-	// Target Complexity:
-	// O(1) for "number" and "string" cells
-	// O(T) for "formula" nodes where T is the number of nodes in the
-	// formula tree
-	public void updateValue(Map<String, Cell> cellMap) {
-		if (kind().equals("string") || kind().equals("number")) {
-			return;
-		}
-		try {
-			// Evaluate Formula
-			numberValue = evalFormulaTree(treeRoot, cellMap);
-			// No Error
-			isError = false;
-		} catch (Exception e) {
-			// Error in Formula
-			isError = true;
-		}
-	}
-
-	// A simple class to reflect problems evaluating a formula tree.
-	public static class EvalFormulaException extends RuntimeException {
-		public EvalFormulaException(String msg){
-			super(msg);
-		}
-	}
-
-	// Recursively evaluate the formula tree rooted at the given
-	// node. Return the computed value. Use the given map to retrieve
-	// the number value of cells which appear in the formula. If any
-	// cell ID in the formula is unusable (blank, error, string), this
-	// method raises an EvalFormulaException.
-	//
-	// This method is public and static to allow for testing independent
-	// of any individual cell but should be used in the
-	// updateValue() method to allow individual cells to compute
-	// their formula values.
-	//
-	// Inspect the FNode and TokenType classes to gain insight into what
-	// information is available in FNodes to inspect during the
-	// post-order traversal for evaluation.
-	//
-	// Target Complexity: O(T)
-	// T: the number of nodes in the formula tree
-	public static Double evalFormulaTree(FNode node, Map<String, Cell> cellMap)
-	{
-		// Recursive post Order to Evaluate the Formula
-		return postOrderTraversal(node, cellMap);
-	}
-	
-	/**
-	 * Post Order Traversal to Evaluate the Formula
-	 * @param node
-	 * @param cellMap
-	 * @return
-	 */
-	private static Double postOrderTraversal(FNode node, Map<String, Cell> cellMap) {
-		if (node != null) {
-			Double leftValue = postOrderTraversal(node.left, cellMap);
-			Double rightValue = postOrderTraversal(node.right, cellMap);
-			if (node.type == TokenType.Number)
-				return Double.parseDouble(node.data);
-			else if (node.type == TokenType.CellID) {
-				Cell cell = cellMap.get(node.data);
-				// Check if there is any error.
-				if (cell == null || cell.isError() || cell.contents().equals("") || cell.kind().equals("string")) {
-					throw new EvalFormulaException("Error in Formula Evaluation.");
-				}
-				// Otherwise return Double value
-				return cell.numberValue();
-			}
-			else if (node.type == TokenType.Plus || node.type == TokenType.Minus 
-					|| node.type == TokenType.Multiply || node.type == TokenType.Divide) {
-				switch(node.type) {
-				case Plus:
-					return leftValue + rightValue;
-				case Divide:
-					return leftValue / rightValue;
-				case Minus:
-					return leftValue - rightValue;
-				case Multiply:
-					return leftValue * rightValue;
-				default:
-					break;
-				}
-			}
-			else if (node.type == TokenType.Negate) {
-				// Return the Negated value
-				return (leftValue * -1);
-			}
-		}
-		return 0.0;
-	}
-
-	// Return a set of upstream cells from this cell. Cells of kind
-	// "string" and "number" return an empty set. Formula cells are
-	// dependent on the contents of any cell whose ID appears in the
-	// formula and returns all such ids in a set. For formula cells,
-	// this method should call a recursive helper method to traverse the
-	// formula tree and accumulate a set of ids in the formula tree.
-	//
-	// Target Complexity: O(T)
-	// T: the number of nodes in the formula tree
-	public Set<String> getUpstreamIDs(){
-		Set<String> setToReturn = new HashSet<String>();
-		if (kind().equals("string") || kind().equals("number")) {
-			return setToReturn;
-		}
-		// Traverse and get IDs
-		getUpstreamIDs(treeRoot, setToReturn);
-		return setToReturn;
-	}
-	
-	/**
-	 * Helper function
-	 * @param node
-	 * @param idsSet
-	 */
-	private void getUpstreamIDs(FNode node, Set<String> idsSet) {
-		if (node != null) {
-			getUpstreamIDs(node.left, idsSet);
-			if (node.type == TokenType.CellID)
-				idsSet.add(node.data);
-			getUpstreamIDs(node.right, idsSet);
-		}
-	}
-
-}
\ No newline at end of file
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+// Spreadsheet Cells can be one of three different kinds:
+// - Formulas always start with the = sign.  If the 0th character in
+//   contents is a '=', use the method
+//     FNode root = FNode.parseFormulaString(contents);
+//   to create a formula tree of FNodes for later use.
+// - Numbers can be parsed as doubles using the
+//   Double.parseDouble(contents) method.  
+// - Strings are anything else aside from Formulas and Numbers and
+//   store only the contents given.
+//
+// Cells are largely immutable: once the contents of a cell are set,
+// they do not change except to reflect movement of upstream dependent
+// cells in a formula.  The value of a formula cell may change after
+// if values change in its dependent cells. To make changes in a
+// spreadsheet, one will typically create a new Cell with different
+// contents using the method
+//   newCell = Cell.make(contents);
+//
+// Cell.make(..) returns one of the nested final subclasses below
+// according to the kind of the contents: NumberCell keeps only the
+// parsed double, StringCell only its interned contents and FormulaCell
+// the compiled formula with its current value and error state. kind()
+// remains as a string view of which one a cell is.
+public abstract class Cell {
+	private final String cellContents;
+
+	Cell(String cellContents) {
+		this.cellContents = cellContents;
+	}
+
+	// Factory method to create cells with the given contents linked to
+	// the given spreadsheet. The method is static so that one invokes
+	// it with:
+	//
+	// Cell c = Cell.make("=A21*2");
+	//
+	// The return value may be a subclass of Cell which is not possible
+	// with constructors. Call trim() on the contents string to remove
+	// whitespace at the beginning and end. If the contents is null or
+	// empty, return null. If contents is not valid, a RuntimeException
+	// is generated; this may happen if the contents is a formula that
+	// cannot be parsed by FNode.parseFormulaString(contents) which
+	// raises RuntimeExceptions for invalid syntax such as "=1 ++ 2"
+	//
+	// If the cell is a formula, it is not possible to evaluate its
+	// formula during Cell.make() as other references to other cells
+	// cannot be resolved. The formula can only be reliably evaluated
+	// after a call to cell.updateValue(cellMap) is made later. Until
+	// that time the cell should be in the ERROR state with
+	// cell.isError() == true and displayString() == "ERROR" and
+	// cell.numberValue() == null. The exception is a formula without
+	// any cell references, such as "=60*60*24", which is folded to a
+	// constant and has its value immediately.
+	public static Cell make(String contents) {
+		// Return null for null or empty string
+		if (contents == null || contents.trim().equals("")) 
+			return null;
+		
+		String trimmed = contents.trim();
+		if (trimmed.startsWith("=")) {
+			// Formula
+			return new FormulaCell(trimmed);
+		}
+		double value;
+		try {
+			value = Double.parseDouble(trimmed);
+		} catch (NumberFormatException e) {
+			// string
+			return new StringCell(trimmed);
+		}
+		// Return a new numbered Cell
+		return new NumberCell(trimmed, value);
+	}
+
+	// Return the kind of the cell which is one of "string", "number",
+	// or "formula".
+	public abstract String kind();
+
+	// Returns whether the cell is currently in an error state. Cells
+	// with kind() "string" and "number" are never in error. Formula
+	// cells are in error and show ERROR if their formula involves cells
+	// which are blank or have kind "string" and therefore cannot be
+	// used to calculate the value of the cell.
+	public boolean isError() {
+		return false;
+	}
+
+	// Return why the cell is in error, or null if it is not. Only
+	// formula cells are ever in error.
+	public ErrorKind errorKind() {
+		return null;
+	}
+
+	// Produce a string to display the contents of the cell. For kind()
+	// "string", this method returns the original contents of the
+	// cell. For kind "number", show the numeric value of the cell with
+	// 1 decimal point of accuracy. For formula cells which are in
+	// error, return the string "ERROR". Formula cells which are not in
+	// error return a string of their numeric value with 1 decimal digit
+	// of accuracy, formatted by FixedFormat exactly as String.format()
+	// would.
+	//
+	// Target Complexity: O(1)
+	// Avoid repeated formula evaluation by traversing the formula tree
+	// only in updateValue(); the string itself is only built when the
+	// value changes.
+	public abstract String displayString();
+
+	// Return the numeric value of this cell. If the cell is kind
+	// "number", this is the double value of its contents. For kind
+	// "formula", it is the evaluated value of the formula. For kind
+	// "string" return null.
+	//
+	// Target Complexity: O(1)
+	// Avoid repeated formula evaluation by traversing the formula tree
+	// only in updateValue()
+	public abstract Double numberValue();
+
+	// Returns whether numberValue() would return a number, without
+	// boxing it. Used by formulas to check their inputs.
+	abstract boolean hasNumber();
+
+	// Return the numeric value of this cell without boxing it. Only
+	// meaningful when hasNumber() is true; used by FormulaProgram to
+	// read inputs during evaluation.
+	abstract double doubleValue();
+
+	// Return the raw contents of the cell. For kind() "number" and
+	// "string", this is the original contents entered into the cell.
+	// For kind() "formula", this is the text of the formula.
+	//
+	// Target Complexity: O(1)
+	public String contents() {
+		return cellContents;
+	}
+
+	// Return the compiled formula of this cell, or null if it has none.
+	FormulaProgram program() {
+		return null;
+	}
+
+	// Update the value of the cell value. If the cell is not a formula
+	// (string and number), do nothing. Formulas should re-evaluate the
+	// stored formula tree to determine a numeric value. This method
+	// may be called when the cell is initially created to give it a
+	// numeric value in which case an empty map should be used.
+	// Whenever an upstream cell changes value, the housing spreadsheet
+	// will call this method to recompute the numeric value to reflect
+	// the change. This method should not raise any exceptions if there
+	// are problems evaluating the formula due to other unusable cells.
+	// It should set the state of this cell to be in error so that a
+	// call to isError() returns true. If the cell formula is
+	// successfully evaluated, isError() should return false.
+	//
+	// Target Complexity:
+	// O(1) for "number" and "string" cells
+	// O(T) for "formula" nodes where T is the number of nodes in the
+	// formula tree
+	//
+	// This form copies the cells the formula reads into a packed map
+	// and is kept for callers holding cells by string ID; Spreadsheet
+	// uses updateValue(LongObjectMap) directly.
+	public void updateValue(Map<String, Cell> cellMap) {
+	}
+
+	// Update the value of the cell reading the cells it depends on from
+	// a map keyed by packed cell reference (see CellRef).
+	//
+	// Target Complexity: same as updateValue(Map)
+	public void updateValue(LongObjectMap<Cell> cellMap) {
+		recompute(cellMap);
+	}
+
+	// Same as updateValue(LongObjectMap) but return whether what
+	// downstream formulas read from this cell changed: whether it is in
+	// error and, if not, the exact bits of its value. Used by the
+	// spreadsheet to stop recalculating where nothing changed.
+	boolean recompute(LongObjectMap<Cell> cellMap) {
+		return recompute(cellMap, null);
+	}
+
+	// Same as recompute(LongObjectMap), folding the ranges of aggregates
+	// through the given index, which must be up to date for every cell
+	// the formula reads. Ranges are scanned in the map if it is null.
+	boolean recompute(LongObjectMap<Cell> cellMap, RangeIndex index) {
+		return false;
+	}
+
+	// Mark this formula as needing evaluation from the given cell map
+	// the next time its value is read. Returns false without marking if
+	// the cell is already dirty or has no program to run.
+	//
+	// Target Complexity: O(1)
+	boolean markDirty(LongObjectMap<Cell> cellMap) {
+		return false;
+	}
+
+	// Returns whether this cell is waiting to be evaluated on read.
+	boolean isDirty() {
+		return false;
+	}
+
+	// Move the value and error state of this cell into the given
+	// off-heap store, out of the one it is in, or back onto the heap if
+	// store is null. Only formulas with a program keep their value in a
+	// store; other cells ignore this.
+	void moveValue(OffHeapValues store) {
+	}
+
+	// Bring the value of this cell up to date if it was marked dirty.
+	void ensureCurrent() {
+	}
+
+	// Return a set of upstream cells from this cell. Cells of kind
+	// "string" and "number" return an empty set. Formula cells are
+	// dependent on the contents of any cell whose ID appears in the
+	// formula and returns all such ids in a set. The ids are read from
+	// the cell slots of the compiled formula, which hold each distinct
+	// id of the tree once, so cells restored from a snapshot without
+	// a tree answer the same way. Cells read through the ranges of
+	// aggregates are not included; see getRangeRefs().
+	//
+	// Target Complexity: O(U)
+	// U: the number of distinct cells in the formula
+	public Set<String> getUpstreamIDs(){
+		return DAG.toIDs(getUpstreamRefs());
+	}
+	
+	// Return the upstream cells of this cell as a new set of packed
+	// references (see CellRef). Empty for "string" and "number" cells
+	// and for formulas without cell references.
+	//
+	// Target Complexity: O(U)
+	// U: the number of distinct cells in the formula
+	LongSet getUpstreamRefs() {
+		return new LongSet();
+	}
+
+	// Return the ranges read by the aggregates of this cell as pairs of
+	// packed corners, top-left then bottom-right, or null if it reads
+	// none. The array is shared and must not be modified.
+	long[] getRangeRefs() {
+		return null;
+	}
+
+	// A cell holding a number. Its display string is only formatted the
+	// first time it is asked for.
+	static final class NumberCell extends Cell {
+		private final double numberValue;
+		private String display;
+
+		NumberCell(String cellContents, double numberValue) {
+			super(cellContents);
+			this.numberValue = numberValue;
+		}
+
+		// Construct a number cell whose display string is already
+		// known, or null if it is not
+		NumberCell(String cellContents, double numberValue, String display) {
+			this(cellContents, numberValue);
+			this.display = display;
+		}
+
+		public String kind() {
+			return "number";
+		}
+
+		// Concurrent readers may both format the value; the field is
+		// read once so neither can return null (see CellGrid.Chunk)
+		public String displayString() {
+			String display = this.display;
+			if (display == null) {
+				display = FixedFormat.oneDecimal(numberValue);
+				this.display = display;
+			}
+			return display;
+		}
+
+		public Double numberValue() {
+			return numberValue;
+		}
+
+		boolean hasNumber() {
+			return true;
+		}
+
+		double doubleValue() {
+			return numberValue;
+		}
+	}
+
+	// A cell holding text. The contents are interned so that sheets
+	// repeating the same labels keep one copy of each.
+	static final class StringCell extends Cell {
+		StringCell(String cellContents) {
+			super(cellContents.intern());
+		}
+
+		public String kind() {
+			return "string";
+		}
+
+		public String displayString() {
+			return contents();
+		}
+
+		public Double numberValue() {
+			return null;
+		}
+
+		boolean hasNumber() {
+			return false;
+		}
+
+		double doubleValue() {
+			return 0.0;
+		}
+	}
+
+	// A formula cell. Formulas run the program compiled from their tree
+	// rather than walking the tree itself. Formulas without cell
+	// references are folded to a constant when parsed; they have no
+	// program and keep their value.
+	//
+	// The value and error state are kept in the fields below unless the
+	// cell has been given a slot of an OffHeapValues store, in which
+	// case they are kept there and the display string is formatted
+	// when asked for rather than whenever the value changes.
+	static final class FormulaCell extends Cell {
+		// Null when the value is usable
+		private ErrorKind error;
+		private double numberValue;
+		private final FormulaProgram program;
+		// What displayString() shows, set whenever the value changes;
+		// unused while the value is off the heap
+		private String display;
+		// Store holding the value at valueSlot, or null if it is held
+		// in the fields above
+		private OffHeapValues store;
+		private int valueSlot;
+		// In lazy mode, the cell map to evaluate this formula from when
+		// it is next read; null when the value is current
+		private LongObjectMap<Cell> dirtyInputs;
+
+		FormulaCell(String cellContents) {
+			super(cellContents);
+			FNode treeRoot = FNode.simplify(FNode.parseFormulaString(cellContents));
+			if (treeRoot.type == TokenType.Number) {
+				// No cell references: the value is fixed, never re-evaluated
+				this.numberValue = Double.parseDouble(treeRoot.data);
+				this.error = null;
+				this.program = null;
+			} else {
+				this.error = ErrorKind.NOT_EVALUATED;
+				this.program = FormulaProgram.compile(treeRoot);
+			}
+			updateDisplay();
+		}
+
+		// Recreate a formula from its stored parts without parsing
+		// anything. Used by SheetSnapshot; program is null for formulas
+		// folded to a constant.
+		FormulaCell(String cellContents, ErrorKind error, double numberValue, FormulaProgram program) {
+			super(cellContents);
+			this.error = error;
+			this.numberValue = numberValue;
+			this.program = program;
+			updateDisplay();
+		}
+
+		public String kind() {
+			return "formula";
+		}
+
+		public boolean isError() {
+			ensureCurrent();
+			return error() != null;
+		}
+
+		public ErrorKind errorKind() {
+			ensureCurrent();
+			return error();
+		}
+
+		public String displayString() {
+			ensureCurrent();
+			if (store != null)
+				return error() != null ? "ERROR" : FixedFormat.oneDecimal(value());
+			return display;
+		}
+
+		public Double numberValue() {
+			ensureCurrent();
+			if (error() != null)
+				return null;
+			return value();
+		}
+
+		boolean hasNumber() {
+			ensureCurrent();
+			return error() == null;
+		}
+
+		double doubleValue() {
+			return value();
+		}
+
+		// The current error state and value, wherever they are kept
+		private ErrorKind error() {
+			return store == null ? error : store.error(valueSlot);
+		}
+
+		private double value() {
+			return store == null ? numberValue : store.value(valueSlot);
+		}
+
+		void moveValue(OffHeapValues target) {
+			if (target == store || program == null)
+				return;
+			ErrorKind currentError = error();
+			double currentValue = value();
+			if (store != null)
+				store.release(valueSlot);
+			store = target;
+			if (target != null) {
+				valueSlot = target.allocate();
+				target.set(valueSlot, currentError, currentValue);
+				display = null;
+			} else {
+				error = currentError;
+				numberValue = currentValue;
+				updateDisplay();
+			}
+		}
+
+		FormulaProgram program() {
+			return program;
+		}
+
+		// Recompute the cached display string from the current error
+		// state and value.
+		private void updateDisplay() {
+			display = error != null ? "ERROR" : FixedFormat.oneDecimal(numberValue);
+		}
+
+		public void updateValue(Map<String, Cell> cellMap) {
+			if (program == null) {
+				return;
+			}
+			long[] slots = program.cellSlots();
+			LongObjectMap<Cell> inputs = new LongObjectMap<Cell>(slots.length);
+			for (long ref : slots) {
+				Cell cell = ref == CellRef.INVALID ? null : cellMap.get(CellRef.toID(ref));
+				if (cell != null)
+					inputs.put(ref, cell);
+			}
+			long[] ranges = program.rangeSlots();
+			for (int i = 0; ranges != null && i < ranges.length; i += 2)
+				copyRange(cellMap, ranges[i], ranges[i + 1], inputs);
+			updateValue(inputs);
+		}
+
+		boolean recompute(LongObjectMap<Cell> cellMap, RangeIndex index) {
+			if (program == null) {
+				return false;
+			}
+			dirtyInputs = null;
+			double oldValue = value();
+			boolean wasError = error() != null;
+			// Unusable inputs are reported as a kind of error; only
+			// formulas whose inputs all have values are evaluated
+			ErrorKind newError = program.load(cellMap, index);
+			double newValue = newError == null ? program.evaluate() : oldValue;
+			if (store != null) {
+				store.set(valueSlot, newError, newValue);
+			} else {
+				error = newError;
+				numberValue = newValue;
+			}
+			boolean isError = newError != null;
+			if (isError != wasError || (!isError && Double.doubleToLongBits(newValue) != Double.doubleToLongBits(oldValue))) {
+				// Only format when what is shown may have changed
+				if (store == null)
+					updateDisplay();
+				return true;
+			}
+			return false;
+		}
+
+		boolean markDirty(LongObjectMap<Cell> cellMap) {
+			if (program == null || dirtyInputs != null)
+				return false;
+			dirtyInputs = cellMap;
+			return true;
+		}
+
+		boolean isDirty() {
+			return dirtyInputs != null;
+		}
+
+		// Evaluate this formula if it is dirty, first evaluating those
+		// of its inputs which are dirty themselves. A change marks every
+		// cell downstream of it dirty, so a clean cell only ever reads
+		// clean cells and the walk stops at the first clean cell on
+		// each path. An explicit stack is used so that long chains of
+		// dirty formulas cannot overflow the call stack. Dirty cells in
+		// the ranges of aggregates are not walked; they are evaluated as
+		// the ranges are scanned.
+		//
+		// Target Complexity: O(D + L_D)
+		// D : number of dirty cells upstream of this one
+		// L_D : number of links into those cells
+		void ensureCurrent() {
+			if (dirtyInputs == null)
+				return;
+			ArrayList<FormulaCell> stack = new ArrayList<FormulaCell>();
+			// Index of the next input to check of each cell on the stack
+			int[] nextInput = new int[16];
+			stack.add(this);
+			while (!stack.isEmpty()) {
+				int top = stack.size() - 1;
+				FormulaCell cell = stack.get(top);
+				long[] slots = cell.program.cellSlots();
+				FormulaCell dirtyInput = null;
+				while (dirtyInput == null && nextInput[top] < slots.length) {
+					Cell input = cell.dirtyInputs.get(slots[nextInput[top]++]);
+					if (input != null && input.isDirty())
+						dirtyInput = (FormulaCell) input;
+				}
+				if (dirtyInput != null) {
+					if (stack.size() == nextInput.length)
+						nextInput = Arrays.copyOf(nextInput, stack.size() * 2);
+					nextInput[stack.size()] = 0;
+					stack.add(dirtyInput);
+					continue;
+				}
+				// Every input is current
+				cell.updateValue(cell.dirtyInputs);
+				stack.remove(top);
+			}
+		}
+
+		LongSet getUpstreamRefs() {
+			if (program == null) {
+				return new LongSet();
+			}
+			long[] slots = program.cellSlots();
+			LongSet refs = new LongSet(slots.length);
+			for (long ref : slots) {
+				// A reference that cannot be packed is never linked
+				if (ref != CellRef.INVALID)
+					refs.add(ref);
+			}
+			return refs;
+		}
+
+		long[] getRangeRefs() {
+			return program == null ? null : program.rangeSlots();
+		}
+	}
+
+	// Copy the cells of the range from..to out of a map keyed by string
+	// ID into a packed map
+	private static void copyRange(Map<String, Cell> cellMap, long from, long to, LongObjectMap<Cell> into) {
+		for (long column = CellRef.column(from); column <= CellRef.column(to); column++) {
+			for (long row = CellRef.row(from); row <= CellRef.row(to); row++) {
+				long ref = (column << 32) | row;
+				Cell cell = cellMap.get(CellRef.toID(ref));
+				if (cell != null)
+					into.put(ref, cell);
+			}
+		}
+	}
+
+	// Why a formula cell is in error. There is deliberately no kind for
+	// division by zero: x/0 follows IEEE arithmetic as evalFormulaTree()
+	// always has, so the cell shows "Infinity", "-Infinity" or "NaN" and
+	// downstream formulas keep computing with that value. An error kind
+	// could not be applied consistently either, since FNode.simplify()
+	// folds a constant division such as =1/0 into a plain number.
+	public enum ErrorKind {
+		// The formula refers to an empty cell
+		BLANK_REF,
+		// The formula refers to a cell of kind "string"
+		STRING_REF,
+		// The formula refers to a cell which is in error itself
+		UPSTREAM_ERROR,
+		// The formula has not been evaluated since it was made
+		NOT_EVALUATED
+	}
+
+	// A simple class to reflect problems evaluating a formula tree.
+	public static class EvalFormulaException extends RuntimeException {
+		public EvalFormulaException(String msg){
+			super(msg);
+		}
+	}
+
+	// Recursively evaluate the formula tree rooted at the given
+	// node. Return the computed value. Use the given map to retrieve
+	// the number value of cells which appear in the formula. If any
+	// cell ID in the formula is unusable (blank, error, string), this
+	// method raises an EvalFormulaException.
+	//
+	// This method is public and static to allow for testing independent
+	// of any individual cell but should be used in the
+	// updateValue() method to allow individual cells to compute
+	// their formula values.
+	//
+	// Inspect the FNode and TokenType classes to gain insight into what
+	// information is available in FNodes to inspect during the
+	// post-order traversal for evaluation.
+	//
+	// Target Complexity: O(T)
+	// T: the number of nodes in the formula tree
+	public static Double evalFormulaTree(FNode node, Map<String, Cell> cellMap)
+	{
+		// Recursive post Order to Evaluate the Formula
+		return postOrderTraversal(node, cellMap);
+	}
+	
+	/**
+	 * Post Order Traversal to Evaluate the Formula
+	 * @param node
+	 * @param cellMap
+	 * @return
+	 */
+	private static Double postOrderTraversal(FNode node, Map<String, Cell> cellMap) {
+		if (node != null) {
+			Double leftValue = postOrderTraversal(node.left, cellMap);
+			Double rightValue = postOrderTraversal(node.right, cellMap);
+			if (node.type == TokenType.Number)
+				return Double.parseDouble(node.data);
+			else if (node.type == TokenType.CellID) {
+				Cell cell = cellMap.get(node.data);
+				// Check if there is any error.
+				if (cell == null || !cell.hasNumber()) {
+					throw new EvalFormulaException("Error in Formula Evaluation.");
+				}
+				// Otherwise return Double value
+				return cell.numberValue();
+			}
+			else if (node.type == TokenType.Plus || node.type == TokenType.Minus 
+					|| node.type == TokenType.Multiply || node.type == TokenType.Divide) {
+				switch(node.type) {
+				case Plus:
+					return leftValue + rightValue;
+				case Divide:
+					return leftValue / rightValue;
+				case Minus:
+					return leftValue - rightValue;
+				case Multiply:
+					return leftValue * rightValue;
+				default:
+					break;
+				}
+			}
+			else if (node.type == TokenType.Negate) {
+				// Return the Negated value
+				return (leftValue * -1);
+			}
+			else if (node.type.isAggregate()) {
+				// Fold the range as FormulaProgram does
+				long[] corners = RangeIndex.corners(node.left.data);
+				if (corners == null) {
+					throw new EvalFormulaException("Error in Formula Evaluation.");
+				}
+				LongObjectMap<Cell> cells = new LongObjectMap<Cell>();
+				copyRange(cellMap, corners[0], corners[1], cells);
+				RangeIndex.Totals totals = new RangeIndex.Totals();
+				RangeIndex.scan(cells, corners[0], corners[1], totals);
+				if (totals.errors != 0) {
+					throw new EvalFormulaException("Error in Formula Evaluation.");
+				}
+				return totals.valueOf(node.type);
+			}
+		}
+		return 0.0;
+	}
+
+}
@@ -0,0 +1,439 @@
+import java.util.Arrays;
+
+// The cell store of a Spreadsheet: a map of cells by packed reference
+// (see CellRef) which keeps dense regions of the sheet in chunks
+// instead of hashing every cell.
+//
+// A chunk covers CHUNK_COLUMNS columns by CHUNK_ROWS rows laid out
+// column-major, so the rows of one column are contiguous. A number
+// cell is kept as a primitive double in the chunk's values array,
+// marked in its occupied and number bitmaps, and no Cell object is
+// held for it. String and formula cells, and numbers whose contents
+// are not the canonical text of their value such as "1.50", are kept
+// as objects in a side table allocated with the first of them.
+// Formulas keep their own value and error state, which recalculation
+// updates in place. Cells of regions without a chunk are kept in the
+// inherited hash map. A region gets a chunk once PROMOTE_CELLS of its
+// cells are in the map, and its cells go back to the map when fewer
+// than DEMOTE_CELLS are left.
+//
+// get(..) and valueAt(..) return a new NumberCell for a number kept as
+// a double, so cells must not be compared by identity. Readers in hot
+// loops use chunkOf(..) and offset(..) to read such numbers without
+// creating one, and displayString(..) formats such a number once and
+// keeps the text in its chunk until the cell changes.
+//
+// When given an OffHeapValues store, the grid moves the value of every
+// formula it holds into the store, and back onto the heap when the
+// formula is replaced or removed.
+//
+// Iteration with next(..), keyAt(..) and valueAt(..) visits the slots
+// of the map and then the cells of each chunk, in no particular order;
+// refsInOrder() lists the refs row by row.
+public class CellGrid extends LongObjectMap<Cell> {
+	static final int CHUNK_ROWS = 256;
+	static final int CHUNK_COLUMNS = 4;
+	static final int CHUNK_CELLS = CHUNK_ROWS * CHUNK_COLUMNS;
+	static final int PROMOTE_CELLS = CHUNK_CELLS / 8;
+	static final int DEMOTE_CELLS = CHUNK_CELLS / 32;
+
+	// Chunks by chunk key (see chunkKey(..))
+	private final LongObjectMap<Chunk> chunks = new LongObjectMap<Chunk>();
+	// Number of cells in the map of each region without a chunk
+	private final LongIntMap sparseCounts = new LongIntMap();
+	// Number of cells held in chunks
+	private int chunkedSize;
+	// Where formulas keep their values, or null for the heap
+	private OffHeapValues valueStore;
+
+	// Return the key of the chunk covering ref. Keys are offset by one
+	// so that the first chunk's is not 0.
+	static long chunkKey(long ref) {
+		long column = (CellRef.column(ref) - 1) / CHUNK_COLUMNS;
+		long row = (CellRef.row(ref) - 1) / CHUNK_ROWS;
+		return ((column << 32) | row) + 1;
+	}
+
+	// Return the position of ref within its chunk
+	static int offset(long ref) {
+		return ((CellRef.column(ref) - 1) % CHUNK_COLUMNS) * CHUNK_ROWS + (CellRef.row(ref) - 1) % CHUNK_ROWS;
+	}
+
+	// Return the chunk covering ref, or null if its region has none
+	Chunk chunkOf(long ref) {
+		return chunks.isEmpty() ? null : chunks.get(chunkKey(ref));
+	}
+
+	// Return the contents with which a number cell of the given value
+	// is recreated: the integer without a fraction if it has none,
+	// otherwise Double.toString(..).
+	static String numberText(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	OffHeapValues valueStore() {
+		return valueStore;
+	}
+
+	// Move the values of all formulas into the given store, or back
+	// onto the heap if it is null.
+	//
+	// Target Complexity: O(N)
+	void setValueStore(OffHeapValues store) {
+		valueStore = store;
+		for (int i = next(-1); i >= 0; i = next(i))
+			valueAt(i).moveValue(store);
+	}
+
+	public int size() {
+		return super.size() + chunkedSize;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public boolean containsKey(long ref) {
+		Chunk chunk = chunkOf(ref);
+		return chunk != null ? chunk.isOccupied(offset(ref)) : super.containsKey(ref);
+	}
+
+	// Return the cell at ref, or null if it is blank.
+	//
+	// Target Complexity: O(1)
+	public Cell get(long ref) {
+		Chunk chunk = chunkOf(ref);
+		return chunk != null ? chunk.get(offset(ref)) : super.get(ref);
+	}
+
+	// Return the display string of the cell at ref, or null if it is
+	// blank. Numbers kept as doubles are formatted on the first call
+	// and their text is kept in the chunk, as NumberCell keeps its own.
+	//
+	// Target Complexity: O(1)
+	String displayString(long ref) {
+		Chunk chunk = chunkOf(ref);
+		if (chunk != null && chunk.isNumber(offset(ref)))
+			return chunk.display(offset(ref));
+		Cell cell = chunk != null ? chunk.get(offset(ref)) : super.get(ref);
+		return cell == null ? null : cell.displayString();
+	}
+
+	// Return the slot holding ref, or -1 if it is blank.
+	public int slot(long ref) {
+		Chunk chunk = chunkOf(ref);
+		if (chunk == null)
+			return super.slot(ref);
+		int offset = offset(ref);
+		if (!chunk.isOccupied(offset))
+			return -1;
+		return super.capacity() + chunks.slot(chunkKey(ref)) * CHUNK_CELLS + offset;
+	}
+
+	// Set the cell at ref, returning the previous cell or null. Moves
+	// the cells of its region into a new chunk if they have become
+	// dense enough.
+	//
+	// Target Complexity: O(1) amortized
+	public Cell put(long ref, Cell cell) {
+		if (ref == 0)
+			throw new IllegalArgumentException("CellGrid keys must be non-zero");
+		if (valueStore != null)
+			cell.moveValue(valueStore);
+		long key = chunkKey(ref);
+		Chunk chunk = chunks.get(key);
+		if (chunk != null) {
+			Cell old = chunk.set(offset(ref), cell);
+			if (old == null)
+				chunkedSize++;
+			else if (valueStore != null && old != cell)
+				old.moveValue(null);
+			return old;
+		}
+		boolean added = !super.containsKey(ref);
+		Cell old = super.put(ref, cell);
+		if (added) {
+			int slot = sparseCounts.slot(key);
+			int count = slot < 0 ? 1 : sparseCounts.valueAt(slot) + 1;
+			if (count >= PROMOTE_CELLS) {
+				sparseCounts.remove(key);
+				promote(key, ref, count);
+			} else if (slot < 0) {
+				sparseCounts.put(key, count);
+			} else {
+				sparseCounts.setValueAt(slot, count);
+			}
+		} else if (valueStore != null && old != cell) {
+			old.moveValue(null);
+		}
+		return old;
+	}
+
+	// Remove the cell at ref, returning it or null. Moves the cells of
+	// its chunk back into the map if few enough are left.
+	//
+	// Target Complexity: O(1) amortized
+	public Cell remove(long ref) {
+		long key = chunkKey(ref);
+		Chunk chunk = chunks.isEmpty() ? null : chunks.get(key);
+		if (chunk != null) {
+			Cell old = chunk.clear(offset(ref));
+			if (old != null) {
+				if (valueStore != null)
+					old.moveValue(null);
+				chunkedSize--;
+				if (chunk.size < DEMOTE_CELLS)
+					demote(key, chunk);
+			}
+			return old;
+		}
+		if (!super.containsKey(ref))
+			return null;
+		int slot = sparseCounts.slot(key);
+		if (sparseCounts.valueAt(slot) == 1)
+			sparseCounts.remove(key);
+		else
+			sparseCounts.setValueAt(slot, sparseCounts.valueAt(slot) - 1);
+		Cell old = super.remove(ref);
+		if (valueStore != null)
+			old.moveValue(null);
+		return old;
+	}
+
+	// Remove every cell, moving the values of formulas back onto the
+	// heap as remove(..) does
+	public void clear() {
+		for (int i = valueStore == null ? -1 : next(-1); i >= 0; i = next(i))
+			valueAt(i).moveValue(null);
+		super.clear();
+		chunks.clear();
+		sparseCounts.clear();
+		chunkedSize = 0;
+	}
+
+	// Number of slots; every slot index is below this. Chunk cells have
+	// the slots after those of the map, CHUNK_CELLS per chunk slot.
+	public int capacity() {
+		return super.capacity() + chunks.capacity() * CHUNK_CELLS;
+	}
+
+	// Return the first occupied slot after the given one, or -1 if
+	// there is none. Pass -1 to find the first occupied slot.
+	public int next(int slot) {
+		int base = super.capacity();
+		if (slot < base - 1) {
+			int next = super.next(slot);
+			if (next >= 0)
+				return next;
+			slot = base - 1;
+		}
+		int position = slot + 1 - base;
+		int chunkSlot = position / CHUNK_CELLS;
+		int offset = position % CHUNK_CELLS;
+		for (int i = chunks.next(chunkSlot - 1); i >= 0; i = chunks.next(i)) {
+			if (i != chunkSlot)
+				offset = 0;
+			int next = chunks.valueAt(i).nextOccupied(offset);
+			if (next >= 0)
+				return base + i * CHUNK_CELLS + next;
+		}
+		return -1;
+	}
+
+	// Return the ref of an occupied slot
+	public long keyAt(int slot) {
+		int base = super.capacity();
+		if (slot < base)
+			return super.keyAt(slot);
+		return chunks.valueAt((slot - base) / CHUNK_CELLS).refAt((slot - base) % CHUNK_CELLS);
+	}
+
+	// Return the cell of an occupied slot
+	public Cell valueAt(int slot) {
+		int base = super.capacity();
+		if (slot < base)
+			return super.valueAt(slot);
+		return chunks.valueAt((slot - base) / CHUNK_CELLS).get((slot - base) % CHUNK_CELLS);
+	}
+
+	// Return the refs of every cell ordered by row, then by column
+	//
+	// Target Complexity: O(N log N)
+	long[] refsInOrder() {
+		long[] refs = new long[size()];
+		int count = 0;
+		for (int i = next(-1); i >= 0; i = next(i))
+			refs[count++] = transpose(keyAt(i));
+		Arrays.sort(refs);
+		for (int i = 0; i < refs.length; i++)
+			refs[i] = transpose(refs[i]);
+		return refs;
+	}
+
+	// Swap the column and row halves of a packed reference; both are
+	// positive ints, so sorting transposed refs orders them by row
+	private static long transpose(long ref) {
+		return (ref << 32) | (ref >>> 32);
+	}
+
+	/**
+	 * Helper Method: move the cells of a region from the map into a new
+	 * chunk
+	 * @param key the chunk key of the region
+	 * @param ref any ref inside the region
+	 * @param count the number of its cells in the map
+	 */
+	private void promote(long key, long ref, int count) {
+		Chunk chunk = new Chunk(
+			(CellRef.column(ref) - 1) / CHUNK_COLUMNS * CHUNK_COLUMNS + 1,
+			(CellRef.row(ref) - 1) / CHUNK_ROWS * CHUNK_ROWS + 1);
+		for (int offset = 0; offset < CHUNK_CELLS && chunk.size < count; offset++) {
+			long member = chunk.refAt(offset);
+			if (!super.containsKey(member))
+				continue;
+			chunk.set(offset, super.remove(member));
+		}
+		chunks.put(key, chunk);
+		chunkedSize += chunk.size;
+	}
+
+	/**
+	 * Helper Method: move the cells of a chunk back into the map and
+	 * drop the chunk
+	 * @param key the chunk key of the chunk
+	 * @param chunk
+	 */
+	private void demote(long key, Chunk chunk) {
+		chunks.remove(key);
+		chunkedSize -= chunk.size;
+		for (int offset = chunk.nextOccupied(0); offset >= 0; offset = chunk.nextOccupied(offset + 1))
+			super.put(chunk.refAt(offset), chunk.get(offset));
+		if (chunk.size > 0)
+			sparseCounts.put(key, chunk.size);
+	}
+
+	// The cells of a block of CHUNK_COLUMNS by CHUNK_ROWS, column-major
+	static final class Chunk {
+		// Column and row of the top-left cell
+		final int firstColumn, firstRow;
+		// Bit i of word i / 64 is set if the cell at offset i is not
+		// blank, or is a number kept in values
+		final long[] occupied = new long[CHUNK_CELLS / 64];
+		final long[] numbers = new long[CHUNK_CELLS / 64];
+		final double[] values = new double[CHUNK_CELLS];
+		// Cells which are not kept in values; null until the first
+		Cell[] objects;
+		// Display strings of numbers kept in values, formatted when
+		// first asked for; null until the first
+		String[] displays;
+		int size;
+
+		Chunk(int firstColumn, int firstRow) {
+			this.firstColumn = firstColumn;
+			this.firstRow = firstRow;
+		}
+
+		boolean isOccupied(int offset) {
+			return (occupied[offset >>> 6] & (1L << offset)) != 0;
+		}
+
+		// Whether the cell at offset is a number kept in values
+		boolean isNumber(int offset) {
+			return (numbers[offset >>> 6] & (1L << offset)) != 0;
+		}
+
+		long refAt(int offset) {
+			return ((long) (firstColumn + offset / CHUNK_ROWS) << 32) | (firstRow + offset % CHUNK_ROWS);
+		}
+
+		Cell get(int offset) {
+			if (isNumber(offset)) {
+				String[] displays = this.displays;
+				return new Cell.NumberCell(numberText(values[offset]), values[offset],
+										   displays == null ? null : displays[offset]);
+			}
+			return objects == null ? null : objects[offset];
+		}
+
+		// Return the display string of the number kept at offset.
+		//
+		// This is the one write made by a read, and PartitionedSheet
+		// lets readers of cells in different stripes of a component
+		// call it on one chunk at once; writers of the component hold
+		// every stripe, so they never overlap a reader. Racing readers
+		// may each allocate displays, losing the other's entries, or
+		// format the same value twice. Both only cost formatting again:
+		// each call works on the array it read once, Strings are
+		// immutable, and a lost or unseen entry is null, never stale.
+		String display(int offset) {
+			String[] displays = this.displays;
+			if (displays == null) {
+				displays = new String[CHUNK_CELLS];
+				this.displays = displays;
+			}
+			String display = displays[offset];
+			if (display == null) {
+				display = FixedFormat.oneDecimal(values[offset]);
+				displays[offset] = display;
+			}
+			return display;
+		}
+
+		// Store cell at offset, returning the previous cell or null
+		Cell set(int offset, Cell cell) {
+			Cell old = get(offset);
+			if (old == null)
+				size++;
+			int word = offset >>> 6;
+			long bit = 1L << offset;
+			occupied[word] |= bit;
+			if (displays != null)
+				displays[offset] = null;
+			if (cell instanceof Cell.NumberCell && cell.contents().equals(numberText(cell.doubleValue()))) {
+				numbers[word] |= bit;
+				values[offset] = cell.doubleValue();
+				if (objects != null)
+					objects[offset] = null;
+			} else {
+				numbers[word] &= ~bit;
+				if (objects == null)
+					objects = new Cell[CHUNK_CELLS];
+				objects[offset] = cell;
+			}
+			return old;
+		}
+
+		// Make the cell at offset blank, returning the previous cell or
+		// null
+		Cell clear(int offset) {
+			Cell old = get(offset);
+			if (old == null)
+				return null;
+			size--;
+			occupied[offset >>> 6] &= ~(1L << offset);
+			numbers[offset >>> 6] &= ~(1L << offset);
+			if (objects != null)
+				objects[offset] = null;
+			if (displays != null)
+				displays[offset] = null;
+			return old;
+		}
+
+		// Return the first occupied offset at or after the given one, or
+		// -1 if there is none
+		int nextOccupied(int offset) {
+			if (offset >= CHUNK_CELLS)
+				return -1;
+			int word = offset >>> 6;
+			long bits = occupied[word] & (-1L << offset);
+			while (bits == 0) {
+				if (++word == occupied.length)
+					return -1;
+				bits = occupied[word];
+			}
+			return word * 64 + Long.numberOfTrailingZeros(bits);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+// Packs spreadsheet cell IDs such as "BB8" into a single long so that
+// cells and dependency links can be stored in primitive-keyed maps
+// instead of hashing strings. The column letters are read as a
+// bijective base-26 number (A=1, Z=26, AA=27, ...) and stored in the
+// high 32 bits; the row number is stored in the low 32 bits. Packing
+// and unpacking are exact inverses for every ID matching
+//
+// ^[A-Z]+[1-9][0-9]*$
+//
+// with at most 6 column letters and a row no greater than
+// Integer.MAX_VALUE. Since both column and row are at least 1, no ID
+// packs to 0, which the primitive maps use to mark empty slots.
+//
+// String IDs are only used at the public API boundary of Spreadsheet
+// and DAG; internally everything works on packed references.
+public class CellRef {
+	
+	// Longest column that still fits in an int: ZZZZZZ
+	static final int MAX_COLUMN_LETTERS = 6;
+
+	// Stands for an ID that cannot be packed, such as "A0" in a
+	// formula. Its column is beyond ZZZZZZ, so no cell is ever stored
+	// there and it has no string ID.
+	static final long INVALID = ((long) Integer.MAX_VALUE << 32) | 1;
+
+	// Pack the given ID. If the ID is not formatted correctly or is out
+	// of range, throw a RuntimeException.
+	//
+	// Target Complexity: O(length of id)
+	public static long pack(String id) {
+		long ref = tryPack(id);
+		if (ref == INVALID) {
+			throw new RuntimeException("Invalid ID Format.");
+		}
+		return ref;
+	}
+
+	// Pack the given ID, or return INVALID if it is not formatted
+	// correctly or is out of range.
+	//
+	// Target Complexity: O(length of id)
+	static long tryPack(String id) {
+		int len = id.length();
+		int i = 0;
+		long column = 0;
+		while (i < len && id.charAt(i) >= 'A' && id.charAt(i) <= 'Z') {
+			column = column * 26 + (id.charAt(i) - 'A' + 1);
+			i++;
+		}
+		if (i == 0 || i > MAX_COLUMN_LETTERS || i == len || id.charAt(i) == '0') {
+			return INVALID;
+		}
+		long row = 0;
+		for (; i < len; i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return INVALID;
+			}
+			row = row * 10 + (c - '0');
+			if (row > Integer.MAX_VALUE) {
+				return INVALID;
+			}
+		}
+		return (column << 32) | row;
+	}
+
+	// Return the 1-based column of a packed reference.
+	public static int column(long ref) {
+		return (int) (ref >>> 32);
+	}
+
+	// Return the 1-based row of a packed reference.
+	public static int row(long ref) {
+		return (int) ref;
+	}
+
+	// Recover the string ID of a packed reference.
+	public static String toID(long ref) {
+		char[] letters = new char[MAX_COLUMN_LETTERS];
+		int start = letters.length;
+		int column = column(ref);
+		while (column > 0) {
+			column--;
+			letters[--start] = (char) ('A' + column % 26);
+			column /= 26;
+		}
+		return new String(letters, start, letters.length - start) + row(ref);
+	}
+}
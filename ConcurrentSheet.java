@@ -0,0 +1,102 @@
+import java.util.Map;
+
+// A spreadsheet that can be read by many threads while one thread
+// edits it. Edits go through setCell(..), deleteCell(..) and
+// applyBatch(..) and are applied to a private Spreadsheet, which is
+// recalculated as usual. Only then is a new immutable SheetVersion
+// published, so readers calling current() never wait on the writer
+// and never see a half-recalculated sheet. A reader keeps a
+// consistent view for as long as it holds on to the version it got.
+//
+// Versions share structure: publishing copies only the cells the edit
+// changed or re-evaluated (see Spreadsheet.trackChanges(..)) into a
+// PersistentLongMap, so the cost of an edit grows with the cells it
+// affects rather than the size of the sheet. Edits are serialized on
+// this object; an edit rejected by the sheet, such as one creating a
+// cycle, publishes nothing. The private sheet is never lazy, so every
+// published value is already computed.
+public class ConcurrentSheet {
+	private final Spreadsheet sheet;
+	// Refs touched by the edit in progress, guarded by this
+	private LongSet touched = new LongSet();
+	private volatile SheetVersion current;
+
+	// Construct an empty concurrent spreadsheet
+	public ConcurrentSheet() {
+		this(new Spreadsheet());
+	}
+
+	// Construct a concurrent spreadsheet taking over the given sheet,
+	// which must not be used directly afterwards.
+	//
+	// Target Complexity: O(N log32 N)
+	public ConcurrentSheet(Spreadsheet sheet) {
+		this.sheet = sheet;
+		sheet.setLazy(false);
+		PersistentLongMap<SheetVersion.CellState> cells = PersistentLongMap.empty();
+		LongObjectMap<Cell> all = sheet.spreadsheetCells;
+		for (int i = all.next(-1); i >= 0; i = all.next(i))
+			cells = cells.put(all.keyAt(i), new SheetVersion.CellState(all.valueAt(i)));
+		current = new SheetVersion(0, cells);
+		sheet.trackChanges(touched);
+	}
+
+	// Return the latest published version. Never blocks.
+	public SheetVersion current() {
+		return current;
+	}
+
+	// Set the given cell as Spreadsheet.setCell(..) does and return the
+	// version published for the edit.
+	public synchronized SheetVersion setCell(String id, String contents) {
+		try {
+			sheet.setCell(id, contents);
+		} finally {
+			publish();
+		}
+		return current;
+	}
+
+	// Delete the given cell as Spreadsheet.deleteCell(..) does and
+	// return the version published for the edit.
+	public synchronized SheetVersion deleteCell(String id) {
+		try {
+			sheet.deleteCell(id);
+		} finally {
+			publish();
+		}
+		return current;
+	}
+
+	// Apply the edits as Spreadsheet.applyBatch(..) does, publishing a
+	// single version for all of them, and return it.
+	public synchronized SheetVersion applyBatch(Map<String, String> edits) {
+		try {
+			sheet.applyBatch(edits);
+		} finally {
+			publish();
+		}
+		return current;
+	}
+
+	// Copy the cells touched since the last version into a new one and
+	// publish it. Nothing is published if no cell was touched, as when
+	// an edit is rejected before changing the sheet.
+	//
+	// Target Complexity: O(C log32 N)
+	// C : number of cells touched by the edit
+	private void publish() {
+		if (touched.isEmpty())
+			return;
+		PersistentLongMap<SheetVersion.CellState> cells = current.cells();
+		for (int i = touched.next(-1); i >= 0; i = touched.next(i)) {
+			long ref = touched.keyAt(i);
+			Cell cell = sheet.spreadsheetCells.get(ref);
+			cells = cell == null ? cells.remove(ref) : cells.put(ref, new SheetVersion.CellState(cell));
+		}
+		// A fresh set, so one large edit does not slow down later ones
+		touched = new LongSet();
+		sheet.trackChanges(touched);
+		current = new SheetVersion(current.number() + 1, cells);
+	}
+}
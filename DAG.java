@@ -1,221 +1,958 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-// Model a Directed Acyclic Graph (DAG) which allows nodes (vertices)
-// to be specified by name as strings and added to the DAG by
-// Specifying their upstream dependencies as a set of string IDs.
-// Attempting to introduce a cycle causes an exception to be thrown.
-public class DAG {
-	
-	Map<String, Set<String>> upstreamLinksMap;
-	Map<String, Set<String>> downstreamLinksMap;
-	
-	// Construct an empty DAG
-	public DAG() {
-		upstreamLinksMap = new HashMap<String, Set<String>>();
-		downstreamLinksMap = new HashMap<String, Set<String>>();
-	}
-
-	// Produce a string representaton of the DAG which shows the
-	// upstream and downstream links in the graph. The format should be
-	// as follows:
-	//
-	// Upstream Links:
-	// A1 : [E1, F2, C1]
-	// C1 : [E1, F2]
-	// BB8 : [D1, C1, RU37]
-	// RU37 : [E1]
-	// Downstream Links:
-	// E1 : [A1, C1, RU37]
-	// F2 : [A1, C1]
-	// D1 : [BB8]
-	// RU37 : [BB8]
-	// C1 : [A1, BB8]
-	public String toString() {
-		StringBuilder str = new StringBuilder();
-		str.append("Upstream Links:\n");
-		for (String upkey : upstreamLinksMap.keySet()) {
-			str.append(String.format("%4s", upkey) + " : " + upstreamLinksMap.get(upkey) + "\n");
-		}
-		str.append("Downstream Links:\n");
-		for (String downkey : downstreamLinksMap.keySet()) {
-			str.append(String.format("%4s", downkey) + " : " + downstreamLinksMap.get(downkey) + "\n");
-		}
-		return str.toString();
-	}
-
-	// Return the upstream links associated with the given ID. If there
-	// are no links associated with ID, return the empty set.
-	//
-	// TARGET COMPLEXITY: O(1)
-	public Set<String> getUpstreamLinks(String id) {
-		return upstreamLinksMap.get(id)==null?new HashSet<String>():upstreamLinksMap.get(id);
-	}
-
-	// Return the downstream links associated with the given ID. If
-	// there are no links associated with ID, return the empty set.
-	//
-	// TARGET COMPLEXITY: O(1)
-	public Set<String> getDownstreamLinks(String id) {
-		return downstreamLinksMap.get(id)==null?new HashSet<String>():downstreamLinksMap.get(id);
-	}
-
-	// Class representing a cycle that is detected on adding to the
-	// DAG. Raised in checkForCycles(..) and add(..).
-	public static class CycleException extends RuntimeException {
-		public CycleException(String msg) {
-			super(msg);
-		}
-	}
-
-	// Add a node to the DAG with the provided set of upstream links.
-	// Add the new node to the downstream links of each upstream node.
-	// If the upstreamIDs argument is either null or empty, remove the
-	// node with the given ID.
-	//
-	// After adding the new node, check whether it has created any
-	// cycles through use of the checkForCycles() method. If a cycle is
-	// created, revert the DAG back to its original form so it appears
-	// there is no change and raise a CycleException with a message
-	// showing the cycle that would have resulted from the addition.
-	//
-	// TARGET RUNTIME COMPLEXITY: O(N + L)
-	// MEMORY OVERHEAD: O(P)
-	// N : number of nodes in the DAG
-	// L : number of upstream links in the DAG
-	// P : longest path in the DAG starting from node id
-	public void add(String id, Set<String> upstreamIDs) {
-		Set<String> removedSet = null;
-		// If the upstreamIDs argument is either null or empty, 
-		// remove the node with the given ID.
-		if (upstreamIDs == null || upstreamIDs.size() == 0) {
-			remove(id);
-			return;
-		}
-		
-		// Check if an ID already Exists, Remove it
-		if (upstreamLinksMap.containsKey(id)) {
-			removedSet = upstreamLinksMap.get(id);
-			remove(id);
-		}
-		
-		// Add in Upstream Links
-		upstreamLinksMap.put(id, upstreamIDs);
-		
-		// Add in downstream links
-		for (String upstreamID : upstreamIDs) {
-			if (downstreamLinksMap.containsKey(upstreamID))
-			{
-				// Add new Entry in Down Stream Set
-				downstreamLinksMap.get(upstreamID).add(id);
-			} else {
-				// Add new Entry in Down Stream Map
-				downstreamLinksMap.put(upstreamID, toSet(id));
-			}
-		}
-		
-		// If There is any Cycle in the DAG
-		List<String> curPath = new ArrayList<String>();
-		curPath.add(id);
-		if (checkForCycles(upstreamLinksMap, curPath)) {
-			// There is a cycle in the DAG
-			remove(id);				// Remove the newly added node
-			if (removedSet != null)	// If anything removed, Put it back
-				add(id, removedSet);
-			// Throw the Exception
-			throw new CycleException(curPath.toString());
-		}
-	}
-	/**
-	 * Helper Method
-	 * @param args
-	 * @return
-	 */
-	private static Set<String> toSet(String... args) {
-		Set<String> set = new HashSet<String>();
-		for (String s : args) {
-			set.add(s);
-		}
-		return set;
-	}
-
-	// Determine if there is a cycle in the graph represented in the
-	// links map. List curPath is the current path through the graph,
-	// the last element of which is the current location in the graph.
-	// This method should do a recursive depth-first traversal of the
-	// graph visiting each neighbor of the current element. Each
-	// neighbor should be checked to see if it equals the first element
-	// in curPath in which case there is a cycle.
-	//
-	// This method should return true if a cycle is found and curPath
-	// should be left to contain the cycle that is found. Return false
-	// if no cycles exist and leave the contents of curPath as they were
-	// originally.
-	//
-	// The method should be used during add(..) which will initialize
-	// curPath to the new node being added and use the upstream links as
-	// the links passed in.
-	public static boolean checkForCycles(Map<String, Set<String>> links, List<String> curPath) {
-		String lastNode = curPath.get(curPath.size() - 1);
-		Set<String> neighbours = links.get(lastNode);
-		// if NEIGHBORS is empty or null then 
-	    // return false as this path has reached a dead end
-		if (neighbours == null || neighbours.size() == 0)
-			return false;
-		
-		for (String nid : neighbours) {
-			curPath.add(nid);
-			// if the first element in PATH equals NID then
-			if (curPath.get(0).equals(nid))
-				return true;
-			if (checkForCycles(links, curPath) == true)
-				return true;
-			
-			// remove the last element from PATH which should be NID
-			curPath.remove(curPath.size() - 1);
-		}
-		
-		return false;
-	}
-
-	// Remove the given id by eliminating it from the downstream links
-	// of other ids and eliminating its upstream links. If the ID has
-	// no upstream dependencies, do nothing.
-	//
-	// TARGET COMPLEXITY: O(L_i)
-	// L_i : number of upstream links node id has
-	public void remove(String id) {
-		// Remove only if upstream exists
-		if (upstreamLinksMap.containsKey(id)) {
-			upstreamLinksMap.remove(id);
-		}
-		
-		// Remove from downstream links
-		for (Iterator<Map.Entry<String, Set<String>>> it = downstreamLinksMap.entrySet().iterator(); it.hasNext();)
-		{
-			Map.Entry<String, Set<String>> entry = it.next();
-			Set<String> set = entry.getValue();
-			// Remove the Value from Set
-			Iterator<String> iterator = set.iterator();
-			while (iterator.hasNext()) {
-				String element = iterator.next();
-			    if (element.equals(id)) {
-			        iterator.remove();
-			    }
-			}
-			// Check if Set is Empty
-			if (set.size() == 0) {
-				// Remove the set as well
-				it.remove();
-			}
-		}
-	}
-	
-	
-
-}
\ No newline at end of file
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Model a Directed Acyclic Graph (DAG) which allows nodes (vertices)
+// to be specified by name as strings and added to the DAG by
+// Specifying their upstream dependencies as a set of string IDs.
+// Attempting to introduce a cycle causes an exception to be thrown.
+//
+// Internally nodes are packed cell references (see CellRef) and links
+// are kept in primitive-keyed maps of primitive sets. The String
+// methods convert at the boundary; Spreadsheet uses the packed
+// methods directly.
+//
+// A node may also read whole ranges of cells, as formulas with
+// aggregates such as SUM(A1:A10000) do. A range is recorded once as a
+// range link of the node rather than as a link to every cell in it.
+// Each cell in the range is then implicitly upstream of the node: the
+// cells reading a cell through a range are found by looking the cell up
+// in the range links of its column (see rangeDependents(..)), and the
+// nodes inside a range by listing the positioned nodes between its
+// corners. Cells in a range with no position of their own have no
+// links and need no ordering.
+public class DAG {
+	
+	LongObjectMap<LongSet> upstreamLinksMap;
+	LongObjectMap<LongSet> downstreamLinksMap;
+	// Position of every linked node in a topological order maintained
+	// as links are added, and the next unused position
+	LongIntMap topologicalOrder;
+	int nextOrder;
+	// Ranges read by each node as pairs of packed corners, top-left
+	// then bottom-right
+	LongObjectMap<long[]> rangeLinksMap;
+	// Range links crossing each column, by column number
+	LongObjectMap<ColumnRanges> columnRanges;
+	// Every node with a position, sorted by reference so that the
+	// positioned nodes inside a range can be listed. Null until the
+	// first range link is added, as only range links need it.
+	TreeSet<Long> positioned;
+	// Nodes given their first position while a link is being ordered,
+	// whose implicit links to the nodes reading them through ranges
+	// must be ordered too; null outside link(..)
+	private LongSet newlyPositioned;
+	// Nodes visited by the searches of orderLink(..) since the DAG was
+	// created, read by Spreadsheet for its metrics
+	long visitedNodes;
+	
+	// Construct an empty DAG
+	public DAG() {
+		upstreamLinksMap = new LongObjectMap<LongSet>();
+		downstreamLinksMap = new LongObjectMap<LongSet>();
+		topologicalOrder = new LongIntMap();
+		rangeLinksMap = new LongObjectMap<long[]>();
+		columnRanges = new LongObjectMap<ColumnRanges>();
+	}
+
+	// The range links crossing one column, as parallel arrays of first
+	// row, last row and the node reading them
+	static final class ColumnRanges {
+		int size;
+		int[] firstRows = new int[4];
+		int[] lastRows = new int[4];
+		long[] nodes = new long[4];
+
+		void add(int firstRow, int lastRow, long node) {
+			if (size == nodes.length) {
+				firstRows = Arrays.copyOf(firstRows, size * 2);
+				lastRows = Arrays.copyOf(lastRows, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			firstRows[size] = firstRow;
+			lastRows[size] = lastRow;
+			nodes[size++] = node;
+		}
+
+		// Remove one matching entry, moving the last into its place
+		void remove(int firstRow, int lastRow, long node) {
+			for (int i = 0; i < size; i++) {
+				if (nodes[i] == node && firstRows[i] == firstRow && lastRows[i] == lastRow) {
+					size--;
+					firstRows[i] = firstRows[size];
+					lastRows[i] = lastRows[size];
+					nodes[i] = nodes[size];
+					return;
+				}
+			}
+		}
+	}
+
+	// Produce a string representaton of the DAG which shows the
+	// upstream and downstream links in the graph. The format should be
+	// as follows:
+	//
+	// Upstream Links:
+	// A1 : [E1, F2, C1]
+	// C1 : [E1, F2]
+	// BB8 : [D1, C1, RU37]
+	// RU37 : [E1]
+	// Downstream Links:
+	// E1 : [A1, C1, RU37]
+	// F2 : [A1, C1]
+	// D1 : [BB8]
+	// RU37 : [BB8]
+	// C1 : [A1, BB8]
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("Upstream Links:\n");
+		appendLinks(str, upstreamLinksMap);
+		str.append("Downstream Links:\n");
+		appendLinks(str, downstreamLinksMap);
+		if (rangeLinksMap.size() != 0) {
+			str.append("Range Links:\n");
+			for (int i = rangeLinksMap.next(-1); i >= 0; i = rangeLinksMap.next(i)) {
+				str.append(String.format("%4s", CellRef.toID(rangeLinksMap.keyAt(i))) + " : [");
+				long[] ranges = rangeLinksMap.valueAt(i);
+				for (int j = 0; j < ranges.length; j += 2) {
+					if (j > 0)
+						str.append(", ");
+					str.append(CellRef.toID(ranges[j]) + ":" + CellRef.toID(ranges[j + 1]));
+				}
+				str.append("]\n");
+			}
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Helper Method: append one line per node of the links map
+	 * @param str
+	 * @param linksMap
+	 */
+	private static void appendLinks(StringBuilder str, LongObjectMap<LongSet> linksMap) {
+		for (int i = linksMap.next(-1); i >= 0; i = linksMap.next(i)) {
+			str.append(String.format("%4s", CellRef.toID(linksMap.keyAt(i))) + " : ");
+			LongSet links = linksMap.valueAt(i);
+			str.append('[');
+			for (int j = links.next(-1); j >= 0; j = links.next(j)) {
+				str.append(CellRef.toID(links.keyAt(j)));
+				if (links.next(j) >= 0)
+					str.append(", ");
+			}
+			str.append("]\n");
+		}
+	}
+
+	// Return the upstream links associated with the given ID. If there
+	// are no links associated with ID, return the empty set.
+	//
+	// TARGET COMPLEXITY: O(L_i)
+	// L_i : number of upstream links node id has
+	public Set<String> getUpstreamLinks(String id) {
+		return toIDs(upstreamLinks(CellRef.pack(id)));
+	}
+
+	// Return the downstream links associated with the given ID. If
+	// there are no links associated with ID, return the empty set.
+	//
+	// TARGET COMPLEXITY: O(D_i)
+	// D_i : number of downstream links node id has
+	public Set<String> getDownstreamLinks(String id) {
+		return toIDs(downstreamLinks(CellRef.pack(id)));
+	}
+
+	// Return the upstream links of the given packed reference, or an
+	// empty set. The result is the DAG's own set and must not be
+	// modified.
+	//
+	// TARGET COMPLEXITY: O(1)
+	LongSet upstreamLinks(long id) {
+		LongSet links = upstreamLinksMap.get(id);
+		return links == null ? LongSet.EMPTY : links;
+	}
+
+	// Return the downstream links of the given packed reference, or an
+	// empty set. The result is the DAG's own set and must not be
+	// modified.
+	//
+	// TARGET COMPLEXITY: O(1)
+	LongSet downstreamLinks(long id) {
+		LongSet links = downstreamLinksMap.get(id);
+		return links == null ? LongSet.EMPTY : links;
+	}
+
+	// Return the ranges read by the given node as pairs of packed
+	// corners, or null if it reads none. The array must not be
+	// modified.
+	//
+	// TARGET COMPLEXITY: O(1)
+	long[] rangeLinks(long id) {
+		return rangeLinksMap.get(id);
+	}
+
+	// Return the nodes reading the given cell through a range link, as
+	// a new set, or an empty set.
+	//
+	// TARGET COMPLEXITY: O(G_c)
+	// G_c : number of range links crossing the cell's column
+	LongSet rangeDependents(long id) {
+		if (columnRanges.size() == 0)
+			return LongSet.EMPTY;
+		ColumnRanges ranges = columnRanges.get(CellRef.column(id));
+		if (ranges == null)
+			return LongSet.EMPTY;
+		int row = CellRef.row(id);
+		LongSet dependents = new LongSet();
+		for (int i = 0; i < ranges.size; i++) {
+			if (ranges.firstRows[i] <= row && row <= ranges.lastRows[i])
+				dependents.add(ranges.nodes[i]);
+		}
+		return dependents;
+	}
+
+	// Return the positioned nodes inside the given ranges, pairs of
+	// packed corners, as a new set. Only called once range links exist.
+	//
+	// TARGET COMPLEXITY: O(C log N + P)
+	// C : number of columns of the ranges
+	// P : number of positioned nodes inside them
+	LongSet positionedIn(long[] ranges) {
+		LongSet nodes = new LongSet();
+		for (int i = 0; i < ranges.length; i += 2) {
+			int firstRow = CellRef.row(ranges[i]), lastRow = CellRef.row(ranges[i + 1]);
+			for (long column = CellRef.column(ranges[i]); column <= CellRef.column(ranges[i + 1]); column++) {
+				for (Long node : positioned.subSet((column << 32) | firstRow, true, (column << 32) | lastRow, true))
+					nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	// Return the downstream links of the given node together with the
+	// nodes reading it through ranges: every node whose value may depend
+	// directly on it. The result is the DAG's own downstream set when no
+	// range covers the node and must not be modified.
+	//
+	// TARGET COMPLEXITY: O(D_i + G_c)
+	LongSet successors(long id) {
+		LongSet dependents = rangeDependents(id);
+		if (dependents.size() == 0)
+			return downstreamLinks(id);
+		LongSet downstream = downstreamLinks(id);
+		for (int i = downstream.next(-1); i >= 0; i = downstream.next(i))
+			dependents.add(downstream.keyAt(i));
+		return dependents;
+	}
+
+	/**
+	 * Helper Method: the upstream links of a node together with the
+	 * positioned nodes inside its ranges
+	 * @param id
+	 * @return the DAG's own upstream set if it has no range links,
+	 *         otherwise a new set
+	 */
+	private LongSet predecessors(long id) {
+		long[] ranges = rangeLinksMap.get(id);
+		if (ranges == null)
+			return upstreamLinks(id);
+		LongSet nodes = positionedIn(ranges);
+		LongSet upstream = upstreamLinks(id);
+		for (int i = upstream.next(-1); i >= 0; i = upstream.next(i))
+			nodes.add(upstream.keyAt(i));
+		return nodes;
+	}
+
+	// Class representing a cycle that is detected on adding to the
+	// DAG. Raised in add(..) and addAll(..).
+	public static class CycleException extends RuntimeException {
+		public CycleException(String msg) {
+			super(msg);
+		}
+	}
+
+	// Add a node to the DAG with the provided set of upstream links.
+	// Add the new node to the downstream links of each upstream node.
+	// If the upstreamIDs argument is either null or empty, remove the
+	// node with the given ID.
+	//
+	// After adding the new node, check whether it has created any
+	// cycles. Rather than searching the whole graph, the DAG maintains
+	// a topological order of its nodes and repairs it for each new link
+	// (see orderLink(..)), which detects a cycle while visiting only the
+	// region of the order between the two ends of the link. If a cycle
+	// is created, revert the DAG back to its original form so it
+	// appears there is no change and raise a CycleException with a
+	// message showing the cycle that would have resulted from the
+	// addition.
+	//
+	// TARGET RUNTIME COMPLEXITY: O(L_i * (R + L_R) log R)
+	// L_i : number of upstream links node id has
+	// R   : number of nodes in the reordered region
+	// L_R : number of links among those nodes
+	public void add(String id, Set<String> upstreamIDs) {
+		add(CellRef.pack(id), toRefs(upstreamIDs));
+	}
+
+	// Packed form of add(String, Set). The DAG keeps the given set.
+	void add(long id, LongSet upstreamIDs) {
+		add(id, upstreamIDs, null);
+	}
+
+	// Same as add(long, LongSet), also giving the ranges the node reads
+	// as pairs of packed corners (see Cell.getRangeRefs()), or null.
+	// The node is removed only if it has neither links nor ranges.
+	void add(long id, LongSet upstreamIDs, long[] ranges) {
+		LongSet removedSet = null;
+		long[] removedRanges = null;
+		// If the upstreamIDs argument is either null or empty, 
+		// remove the node with the given ID.
+		if ((upstreamIDs == null || upstreamIDs.size() == 0) && ranges == null) {
+			remove(id);
+			return;
+		}
+		
+		// Check if an ID already Exists, Remove it
+		if (upstreamLinksMap.containsKey(id) || rangeLinksMap.containsKey(id)) {
+			removedSet = upstreamLinksMap.get(id);
+			removedRanges = rangeLinksMap.get(id);
+			remove(id);
+		}
+		
+		// Add in Upstream and Downstream Links, keeping the order
+		List<String> cycle = link(id, upstreamIDs, ranges);
+		
+		// If There is any Cycle in the DAG
+		if (cycle != null) {
+			// There is a cycle in the DAG
+			remove(id);				// Remove the newly added node
+			if (removedSet != null || removedRanges != null)	// If anything removed, Put it back
+				link(id, removedSet, removedRanges);
+			// Throw the Exception
+			throw new CycleException(cycle.toString());
+		}
+	}
+
+	// Add several nodes to the DAG at once. Each entry maps a node ID to
+	// its new set of upstream links; a null or empty set removes the
+	// node. The old links of every node in the batch are dropped before
+	// any new link is added, so only cycles in the combined result are
+	// reported. If a cycle is created, every node in the batch is
+	// reverted to its original links and a CycleException with a
+	// message showing the cycle is raised.
+	//
+	// TARGET RUNTIME COMPLEXITY: proportional to the regions of the
+	// topological order reordered by the new links; see add(..)
+	public void addAll(Map<String, Set<String>> nodes) {
+		LongObjectMap<LongSet> packed = new LongObjectMap<LongSet>(nodes.size());
+		for (Map.Entry<String, Set<String>> entry : nodes.entrySet()) {
+			packed.put(CellRef.pack(entry.getKey()), toRefs(entry.getValue()));
+		}
+		addAll(packed);
+	}
+
+	// Packed form of addAll(Map). The DAG keeps the given sets.
+	void addAll(LongObjectMap<LongSet> nodes) {
+		addAll(nodes, null);
+	}
+
+	// Same as addAll(LongObjectMap), also giving the ranges read by
+	// nodes of the batch, or null if none reads any. Every node with
+	// ranges must also be a key of nodes.
+	void addAll(LongObjectMap<LongSet> nodes, LongObjectMap<long[]> ranges) {
+		// Remember and drop the original links of every node in the batch
+		long[] ids = new long[nodes.size()];
+		LongSet[] originalLinks = new LongSet[nodes.size()];
+		long[][] originalRanges = new long[nodes.size()][];
+		int n = 0;
+		for (int i = nodes.next(-1); i >= 0; i = nodes.next(i), n++) {
+			ids[n] = nodes.keyAt(i);
+			originalLinks[n] = upstreamLinksMap.get(ids[n]);
+			originalRanges[n] = rangeLinksMap.get(ids[n]);
+			remove(ids[n]);
+		}
+		
+		// Add the new links; every intermediate graph is a subgraph of
+		// the final one, so a cycle found here is a cycle in the result
+		List<String> cycle = null;
+		for (int i = 0; i < ids.length && cycle == null; i++) {
+			LongSet upstreamIDs = nodes.get(ids[i]);
+			long[] nodeRanges = ranges == null ? null : ranges.get(ids[i]);
+			if ((upstreamIDs != null && upstreamIDs.size() != 0) || nodeRanges != null)
+				cycle = link(ids[i], upstreamIDs, nodeRanges);
+		}
+		if (cycle != null) {
+			// Revert the whole batch
+			for (long id : ids)
+				remove(id);
+			for (int i = 0; i < ids.length; i++) {
+				if (originalLinks[i] != null || originalRanges[i] != null)
+					link(ids[i], originalLinks[i], originalRanges[i]);
+			}
+			throw new CycleException(cycle.toString());
+		}
+	}
+
+	/**
+	 * Helper Method: record upstreamIDs as the upstream links of id and
+	 * id as a downstream link of each of them, and ranges as its range
+	 * links, then repair the topological order for each new link. The
+	 * implicit links into id from the positioned nodes in its ranges are
+	 * ordered like any other, as are those from nodes given their first
+	 * position here to the nodes reading them through ranges.
+	 * @param id
+	 * @param upstreamIDs may be null or empty if ranges is not
+	 * @param ranges may be null
+	 * @return the first cycle found, or null if there is none
+	 */
+	private List<String> link(long id, LongSet upstreamIDs, long[] ranges) {
+		if (upstreamIDs != null && upstreamIDs.size() != 0)
+			installLinks(id, upstreamIDs);
+		if (ranges != null)
+			installRanges(id, ranges);
+		if (positioned != null)
+			newlyPositioned = new LongSet();
+		try {
+			if (upstreamIDs != null) {
+				for (int i = upstreamIDs.next(-1); i >= 0; i = upstreamIDs.next(i)) {
+					List<String> cycle = orderLink(upstreamIDs.keyAt(i), id);
+					if (cycle != null)
+						return cycle;
+				}
+			}
+			if (ranges != null) {
+				orderOf(id);
+				LongSet inside = positionedIn(ranges);
+				for (int i = inside.next(-1); i >= 0; i = inside.next(i)) {
+					List<String> cycle = orderLink(inside.keyAt(i), id);
+					if (cycle != null)
+						return cycle;
+				}
+			}
+			while (newlyPositioned != null && newlyPositioned.size() != 0) {
+				LongSet added = newlyPositioned;
+				newlyPositioned = new LongSet();
+				for (int i = added.next(-1); i >= 0; i = added.next(i)) {
+					long node = added.keyAt(i);
+					LongSet dependents = rangeDependents(node);
+					for (int j = dependents.next(-1); j >= 0; j = dependents.next(j)) {
+						List<String> cycle = orderLink(node, dependents.keyAt(j));
+						if (cycle != null)
+							return cycle;
+					}
+				}
+			}
+			return null;
+		} finally {
+			newlyPositioned = null;
+		}
+	}
+
+	/**
+	 * Helper Method: record the range links of id, starting to keep the
+	 * sorted set of positioned nodes if these are the first.
+	 * @param id
+	 * @param ranges
+	 */
+	private void installRanges(long id, long[] ranges) {
+		rangeLinksMap.put(id, ranges);
+		for (int i = 0; i < ranges.length; i += 2) {
+			for (long column = CellRef.column(ranges[i]); column <= CellRef.column(ranges[i + 1]); column++) {
+				ColumnRanges entries = columnRanges.get(column);
+				if (entries == null) {
+					entries = new ColumnRanges();
+					columnRanges.put(column, entries);
+				}
+				entries.add(CellRef.row(ranges[i]), CellRef.row(ranges[i + 1]), id);
+			}
+		}
+		if (positioned == null) {
+			positioned = new TreeSet<Long>();
+			for (int i = topologicalOrder.next(-1); i >= 0; i = topologicalOrder.next(i))
+				positioned.add(topologicalOrder.keyAt(i));
+		}
+	}
+
+	/**
+	 * Helper Method: drop the range links of id, if any.
+	 * @param id
+	 * @return whether id had range links
+	 */
+	private boolean uninstallRanges(long id) {
+		long[] ranges = rangeLinksMap.remove(id);
+		if (ranges == null)
+			return false;
+		for (int i = 0; i < ranges.length; i += 2) {
+			for (long column = CellRef.column(ranges[i]); column <= CellRef.column(ranges[i + 1]); column++) {
+				ColumnRanges entries = columnRanges.get(column);
+				entries.remove(CellRef.row(ranges[i]), CellRef.row(ranges[i + 1]), id);
+				if (entries.size == 0)
+					columnRanges.remove(column);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper Method: record the links in both maps without touching the
+	 * topological order.
+	 * @param id
+	 * @param upstreamIDs
+	 */
+	private void installLinks(long id, LongSet upstreamIDs) {
+		upstreamLinksMap.put(id, upstreamIDs);
+		for (int i = upstreamIDs.next(-1); i >= 0; i = upstreamIDs.next(i)) {
+			long upstreamID = upstreamIDs.keyAt(i);
+			LongSet downstreamIDs = downstreamLinksMap.get(upstreamID);
+			if (downstreamIDs == null) {
+				// Add new Entry in Down Stream Map
+				downstreamIDs = new LongSet();
+				downstreamLinksMap.put(upstreamID, downstreamIDs);
+			}
+			// Add new Entry in Down Stream Set
+			downstreamIDs.add(id);
+		}
+	}
+
+	// Restore links and topological positions saved from another DAG,
+	// as done by SheetSnapshot. Neither checks for cycles nor repairs
+	// the order: the caller guarantees the links are acyclic and that
+	// every linked node is given the position it had when saved.
+	void restoreLinks(long id, LongSet upstreamIDs) {
+		installLinks(id, upstreamIDs);
+	}
+
+	void restoreRanges(long id, long[] ranges) {
+		installRanges(id, ranges);
+	}
+
+	void restoreOrder(long id, int position) {
+		topologicalOrder.put(id, position);
+		if (positioned != null)
+			positioned.add(id);
+		if (position >= nextOrder)
+			nextOrder = position + 1;
+	}
+
+	// Move every node, link and position of other into this DAG. The
+	// two must have no nodes in common, so no link joins them and
+	// placing all of other's positions after this DAG's keeps the
+	// order valid. other must not be used afterwards.
+	//
+	// TARGET RUNTIME COMPLEXITY: O(N_other)
+	void absorb(DAG other) {
+		for (int i = other.upstreamLinksMap.next(-1); i >= 0; i = other.upstreamLinksMap.next(i))
+			upstreamLinksMap.put(other.upstreamLinksMap.keyAt(i), other.upstreamLinksMap.valueAt(i));
+		for (int i = other.downstreamLinksMap.next(-1); i >= 0; i = other.downstreamLinksMap.next(i))
+			downstreamLinksMap.put(other.downstreamLinksMap.keyAt(i), other.downstreamLinksMap.valueAt(i));
+		for (int i = other.rangeLinksMap.next(-1); i >= 0; i = other.rangeLinksMap.next(i))
+			installRanges(other.rangeLinksMap.keyAt(i), other.rangeLinksMap.valueAt(i));
+		if ((long) nextOrder + other.nextOrder > Integer.MAX_VALUE) {
+			compactOrder();
+			other.compactOrder();
+		}
+		int offset = nextOrder;
+		LongIntMap otherOrder = other.topologicalOrder;
+		for (int i = otherOrder.next(-1); i >= 0; i = otherOrder.next(i)) {
+			topologicalOrder.put(otherOrder.keyAt(i), otherOrder.valueAt(i) + offset);
+			if (positioned != null)
+				positioned.add(otherOrder.keyAt(i));
+		}
+		nextOrder = offset + other.nextOrder;
+	}
+
+	// Recompute the topological order of the whole DAG from scratch
+	// with Kahn's algorithm, after links were installed in bulk with
+	// restoreLinks(..). Return the nodes in their new order. If the
+	// links contain a cycle, raise a CycleException showing one; the
+	// order is then left unusable and the DAG should be discarded.
+	//
+	// TARGET RUNTIME COMPLEXITY: O(N + L)
+	long[] rebuildOrder() {
+		// Count upstream links of every node; nodes that only appear as
+		// upstream links have none
+		LongIntMap pending = new LongIntMap(upstreamLinksMap.size() + downstreamLinksMap.size());
+		for (int i = downstreamLinksMap.next(-1); i >= 0; i = downstreamLinksMap.next(i))
+			pending.put(downstreamLinksMap.keyAt(i), 0);
+		for (int i = upstreamLinksMap.next(-1); i >= 0; i = upstreamLinksMap.next(i))
+			pending.put(upstreamLinksMap.keyAt(i), upstreamLinksMap.valueAt(i).size());
+		if (rangeLinksMap.size() != 0) {
+			// Every node gets a position, so the nodes inside a range are
+			// the pending ones; each counts once however many of the
+			// node's ranges or links name it, as successors(..) lists
+			// the node once
+			for (int i = rangeLinksMap.next(-1); i >= 0; i = rangeLinksMap.next(i)) {
+				if (!pending.containsKey(rangeLinksMap.keyAt(i)))
+					pending.put(rangeLinksMap.keyAt(i), 0);
+			}
+			positioned = new TreeSet<Long>();
+			for (int i = pending.next(-1); i >= 0; i = pending.next(i))
+				positioned.add(pending.keyAt(i));
+			for (int i = rangeLinksMap.next(-1); i >= 0; i = rangeLinksMap.next(i)) {
+				int slot = pending.slot(rangeLinksMap.keyAt(i));
+				pending.setValueAt(slot, predecessors(rangeLinksMap.keyAt(i)).size());
+			}
+		}
+		
+		// Emit nodes whose upstream links have all been emitted; the
+		// order array doubles as the queue
+		long[] order = new long[pending.size()];
+		int emitted = 0;
+		for (int i = pending.next(-1); i >= 0; i = pending.next(i)) {
+			if (pending.valueAt(i) == 0)
+				order[emitted++] = pending.keyAt(i);
+		}
+		for (int head = 0; head < emitted; head++) {
+			LongSet downstream = successors(order[head]);
+			for (int i = downstream.next(-1); i >= 0; i = downstream.next(i)) {
+				int slot = pending.slot(downstream.keyAt(i));
+				int count = pending.valueAt(slot) - 1;
+				pending.setValueAt(slot, count);
+				if (count == 0)
+					order[emitted++] = downstream.keyAt(i);
+			}
+		}
+		if (emitted < order.length)
+			throw new CycleException(cycleAmong(pending).toString());
+		
+		topologicalOrder.clear();
+		for (int position = 0; position < order.length; position++)
+			topologicalOrder.put(order[position], position);
+		nextOrder = order.length;
+		return order;
+	}
+
+	/**
+	 * Helper Method: every node left with pending upstream links after
+	 * Kahn's algorithm has an upstream link that is also left, so
+	 * following such links from any of them must revisit a node.
+	 * @param pending
+	 * @return the cycle as a path of upstream links that begins and ends
+	 *         with the same node
+	 */
+	private List<String> cycleAmong(LongIntMap pending) {
+		long node = 0;
+		for (int i = pending.next(-1); i >= 0; i = pending.next(i)) {
+			if (pending.valueAt(i) > 0) {
+				node = pending.keyAt(i);
+				break;
+			}
+		}
+		LongIntMap visitedAt = new LongIntMap();
+		List<Long> path = new ArrayList<Long>();
+		while (!visitedAt.containsKey(node)) {
+			visitedAt.put(node, path.size());
+			path.add(node);
+			LongSet upstream = predecessors(node);
+			for (int i = upstream.next(-1); i >= 0; i = upstream.next(i)) {
+				if (pending.get(upstream.keyAt(i)) > 0) {
+					node = upstream.keyAt(i);
+					break;
+				}
+			}
+		}
+		List<String> cycle = new ArrayList<String>();
+		for (int i = visitedAt.get(node); i < path.size(); i++)
+			cycle.add(CellRef.toID(path.get(i)));
+		cycle.add(CellRef.toID(node));
+		return cycle;
+	}
+
+	// Return the position of the given node in the DAG's topological
+	// order, or -1 if the node has no links. Every node comes after
+	// all of its upstream links, so sorting any set of nodes by
+	// position gives a valid evaluation order for them. Positions are
+	// distinct but not contiguous.
+	//
+	// TARGET COMPLEXITY: O(1)
+	int order(long id) {
+		return topologicalOrder.get(id);
+	}
+
+	/**
+	 * Helper Method: position of a node, appending it to the end of
+	 * the order if it has none yet.
+	 * @param id
+	 * @return the position of id
+	 */
+	private int orderOf(long id) {
+		int position = topologicalOrder.get(id);
+		if (position < 0) {
+			if (nextOrder == Integer.MAX_VALUE)
+				compactOrder();
+			position = nextOrder++;
+			topologicalOrder.put(id, position);
+			if (positioned != null)
+				positioned.add(id);
+			if (newlyPositioned != null)
+				newlyPositioned.add(id);
+		}
+		return position;
+	}
+
+	/**
+	 * Helper Method: renumber positions 0, 1, 2, ... keeping their
+	 * relative order, once appending has used up the int range.
+	 */
+	private void compactOrder() {
+		long[] byPosition = new long[topologicalOrder.size()];
+		int n = 0;
+		for (int i = topologicalOrder.next(-1); i >= 0; i = topologicalOrder.next(i))
+			byPosition[n++] = ((long) topologicalOrder.valueAt(i) << 32) | i;
+		Arrays.sort(byPosition);
+		for (int position = 0; position < n; position++)
+			topologicalOrder.setValueAt((int) byPosition[position], position);
+		nextOrder = n;
+	}
+
+	/**
+	 * Helper Method: repair the topological order after adding the link
+	 * from upstreamID to id, following Pearce and Kelly, "A Dynamic
+	 * Topological Sort Algorithm for Directed Acyclic Graphs" (2006).
+	 *
+	 * If upstreamID is already before id nothing changes. Otherwise only
+	 * nodes positioned between id and upstreamID can be out of order: a
+	 * forward search from id over downstream links and a backward search
+	 * from upstreamID over upstream links, both confined to that region
+	 * and both following the implicit links of ranges,
+	 * find them. Reaching upstreamID from id means the link closes a
+	 * cycle. Otherwise the backward set is moved ahead of the forward
+	 * set, reusing the positions they already occupy.
+	 * @param upstreamID
+	 * @param id
+	 * @return the cycle as a path of upstream links that begins and ends
+	 *         with id, or null if there is no cycle
+	 */
+	private List<String> orderLink(long upstreamID, long id) {
+		int lower = orderOf(id);
+		int upper = orderOf(upstreamID);
+		if (upper < lower)
+			return null;
+		
+		// Forward search from id keeping the current path for reporting
+		// a cycle, the successors of each node on it and the slot
+		// reached in them
+		LongSet forward = new LongSet();
+		long[] path = new long[16];
+		LongSet[] successors = new LongSet[16];
+		int[] cursor = new int[16];
+		int depth = 0;
+		path[depth] = id;
+		successors[depth] = successors(id);
+		cursor[depth++] = -1;
+		forward.add(id);
+		while (depth > 0) {
+			LongSet neighbours = successors[depth - 1];
+			int slot = neighbours.next(cursor[depth - 1]);
+			if (slot < 0) {
+				depth--;
+				continue;
+			}
+			cursor[depth - 1] = slot;
+			long nid = neighbours.keyAt(slot);
+			if (nid == upstreamID) {
+				// id reaches upstreamID which now reads id: a cycle.
+				// Report it along upstream links: id, upstreamID, then
+				// the path back to id.
+				visitedNodes += forward.size();
+				List<String> cycle = new ArrayList<String>();
+				cycle.add(CellRef.toID(id));
+				cycle.add(CellRef.toID(upstreamID));
+				for (int i = depth - 1; i >= 0; i--)
+					cycle.add(CellRef.toID(path[i]));
+				return cycle;
+			}
+			if (topologicalOrder.get(nid) < upper && forward.add(nid)) {
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+					successors = Arrays.copyOf(successors, depth * 2);
+					cursor = Arrays.copyOf(cursor, depth * 2);
+				}
+				path[depth] = nid;
+				successors[depth] = successors(nid);
+				cursor[depth++] = -1;
+			}
+		}
+		
+		// Backward search from upstreamID
+		LongSet backward = new LongSet();
+		long[] stack = new long[16];
+		int top = 0;
+		stack[top++] = upstreamID;
+		backward.add(upstreamID);
+		while (top > 0) {
+			LongSet neighbours = predecessors(stack[--top]);
+			for (int i = neighbours.next(-1); i >= 0; i = neighbours.next(i)) {
+				long nid = neighbours.keyAt(i);
+				if (topologicalOrder.get(nid) > lower && backward.add(nid)) {
+					if (top == stack.length)
+						stack = Arrays.copyOf(stack, top * 2);
+					stack[top++] = nid;
+				}
+			}
+		}
+		
+		visitedNodes += forward.size() + backward.size();
+		
+		// Reassign the positions held by both sets: backward nodes first,
+		// then forward nodes, each keeping their relative order
+		long[] backwardNodes = sortByOrder(backward);
+		long[] forwardNodes = sortByOrder(forward);
+		int[] positions = new int[backwardNodes.length + forwardNodes.length];
+		int n = 0;
+		for (long node : backwardNodes)
+			positions[n++] = topologicalOrder.get(node);
+		for (long node : forwardNodes)
+			positions[n++] = topologicalOrder.get(node);
+		Arrays.sort(positions);
+		n = 0;
+		for (long node : backwardNodes)
+			topologicalOrder.put(node, positions[n++]);
+		for (long node : forwardNodes)
+			topologicalOrder.put(node, positions[n++]);
+		return null;
+	}
+
+	/**
+	 * Helper Method: the nodes of a set ordered by their position
+	 * @param nodes
+	 * @return the nodes in topological order
+	 */
+	private long[] sortByOrder(LongSet nodes) {
+		long[] keyed = new long[nodes.size()];
+		int n = 0;
+		for (int i = nodes.next(-1); i >= 0; i = nodes.next(i))
+			keyed[n++] = ((long) topologicalOrder.get(nodes.keyAt(i)) << 32) | i;
+		Arrays.sort(keyed);
+		long[] sorted = new long[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = nodes.keyAt((int) keyed[i]);
+		return sorted;
+	}
+
+	/**
+	 * Helper Method: pack a set of string IDs
+	 * @param ids
+	 * @return the packed set, or null if ids is null
+	 */
+	static LongSet toRefs(Set<String> ids) {
+		if (ids == null)
+			return null;
+		LongSet refs = new LongSet(ids.size());
+		for (String id : ids) {
+			refs.add(CellRef.pack(id));
+		}
+		return refs;
+	}
+
+	/**
+	 * Helper Method: unpack a set of packed references
+	 * @param refs
+	 * @return a new set of string IDs
+	 */
+	static Set<String> toIDs(LongSet refs) {
+		Set<String> ids = new HashSet<String>();
+		for (int i = refs.next(-1); i >= 0; i = refs.next(i)) {
+			ids.add(CellRef.toID(refs.keyAt(i)));
+		}
+		return ids;
+	}
+
+	// Determine if there is a cycle in the graph represented in the
+	// links map. List curPath is the current path through the graph,
+	// the last element of which is the current location in the graph.
+	// This method should do a recursive depth-first traversal of the
+	// graph visiting each neighbor of the current element. Each
+	// neighbor should be checked to see if it equals the first element
+	// in curPath in which case there is a cycle.
+	//
+	// This method should return true if a cycle is found and curPath
+	// should be left to contain the cycle that is found. Return false
+	// if no cycles exist and leave the contents of curPath as they were
+	// originally.
+	//
+	// add(..) and addAll(..) no longer search the graph for cycles;
+	// they detect them while maintaining the DAG's topological order.
+	// This method remains for checking arbitrary string-keyed link maps.
+	public static boolean checkForCycles(Map<String, Set<String>> links, List<String> curPath) {
+		String lastNode = curPath.get(curPath.size() - 1);
+		Set<String> neighbours = links.get(lastNode);
+		// if NEIGHBORS is empty or null then 
+	    // return false as this path has reached a dead end
+		if (neighbours == null || neighbours.size() == 0)
+			return false;
+		
+		for (String nid : neighbours) {
+			curPath.add(nid);
+			// if the first element in PATH equals NID then
+			if (curPath.get(0).equals(nid))
+				return true;
+			if (checkForCycles(links, curPath) == true)
+				return true;
+			
+			// remove the last element from PATH which should be NID
+			curPath.remove(curPath.size() - 1);
+		}
+		
+		return false;
+	}
+
+	// Remove the given id by eliminating it from the downstream links
+	// of other ids and eliminating its upstream and range links. If the
+	// ID has no upstream dependencies, do nothing.
+	//
+	// TARGET COMPLEXITY: O(L_i)
+	// L_i : number of upstream links node id has
+	public void remove(String id) {
+		remove(CellRef.pack(id));
+	}
+
+	// Packed form of remove(String). Only the downstream sets of the
+	// node's own upstream links can mention it, so those are the only
+	// ones visited. Removing links never invalidates the topological
+	// order; nodes left without any links simply leave it.
+	void remove(long id) {
+		// Remove only if upstream or range links exist
+		boolean hadRanges = uninstallRanges(id);
+		LongSet upstreamIDs = upstreamLinksMap.remove(id);
+		if (upstreamIDs == null) {
+			if (hadRanges)
+				unorderIfUnlinked(id);
+			return;
+		}
+		
+		// Remove from the downstream links of each upstream node
+		for (int i = upstreamIDs.next(-1); i >= 0; i = upstreamIDs.next(i)) {
+			long upstreamID = upstreamIDs.keyAt(i);
+			LongSet set = downstreamLinksMap.get(upstreamID);
+			if (set == null)
+				continue;
+			set.remove(id);
+			// Remove the set as well once it is empty
+			if (set.size() == 0) {
+				downstreamLinksMap.remove(upstreamID);
+				unorderIfUnlinked(upstreamID);
+			}
+		}
+		unorderIfUnlinked(id);
+	}
+
+	/**
+	 * Helper Method: drop a node from the topological order once it has
+	 * neither upstream nor downstream links.
+	 * @param id
+	 */
+	private void unorderIfUnlinked(long id) {
+		if (!upstreamLinksMap.containsKey(id) && !downstreamLinksMap.containsKey(id)
+			&& !rangeLinksMap.containsKey(id)) {
+			topologicalOrder.remove(id);
+			if (positioned != null)
+				positioned.remove(id);
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// A JDK Flight Recorder event for one edit of a Spreadsheet, with the
+// figures RecalcMetrics accumulates. The sheet fills it in while it
+// measures an edit, which it does while metrics are enabled or a
+// recording has this event enabled; otherwise no event is begun and
+// nothing is timed. Enable it in a recording with, for example,
+//
+// java -XX:StartFlightRecording:filename=sheet.jfr,settings=profile ...
+//
+// and view it with "jfr print --events spreadsheet.Edit sheet.jfr".
+@Name("spreadsheet.Edit")
+@Label("Spreadsheet Edit")
+@Category("Spreadsheet")
+@Description("An edit of a spreadsheet and the recalculation it caused")
+@StackTrace(false)
+class EditEvent extends jdk.jfr.Event {
+	// Asked whether any recording wants the event before one is made
+	private static final EventType TYPE = EventType.getEventType(EditEvent.class);
+
+	@Label("Cell")
+	@Description("The cell edited, or the first of a batch")
+	String cell;
+
+	@Label("Cells Edited")
+	int cellsEdited;
+
+	@Label("Formulas Parsed")
+	int formulasParsed;
+
+	@Label("Parse Time")
+	@Description("Time parsing and compiling the formulas of the edit")
+	@Timespan(Timespan.NANOSECONDS)
+	long parseNanos;
+
+	@Label("Cycle Check Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long cycleCheckNanos;
+
+	@Label("Nodes Visited")
+	@Description("DAG nodes visited repairing the topological order")
+	long nodesVisited;
+
+	@Label("Cycle Found")
+	boolean cycleFound;
+
+	@Label("Cells Evaluated")
+	long cellsEvaluated;
+
+	@Label("Cells Skipped")
+	long cellsSkipped;
+
+	@Label("Error Cells")
+	@Description("Formulas evaluated into an error")
+	int errorCells;
+
+	@Label("Propagation Width")
+	@Description("Cells in the recalculation order")
+	int propagationWidth;
+
+	@Label("Propagation Depth")
+	@Description("Dependency levels of the recalculation order")
+	int propagationDepth;
+
+	// Not recorded: when the edit began, the sheet's counters then, and
+	// whether its links were checked for cycles
+	transient long startNanos;
+	transient long evaluatedBefore;
+	transient long skippedBefore;
+	transient boolean cycleChecked;
+
+	// Whether a running recording has this event enabled
+	static boolean recorded() {
+		return TYPE.isEnabled();
+	}
+}
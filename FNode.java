@@ -1,6 +1,8 @@
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // Represent elements of a binary abstract syntax tree for basic
 // spreadsheet formulas like '=A1 + -5.23 *(2+3+A4) / ZD11'.
@@ -15,6 +17,10 @@ public class FNode {
   //   TokenType.Negate
   //   TokenType.CellID
   //   TokenType.Number
+  //   TokenType.Range
+  //   TokenType.Sum, Min, Max, Count or Average
+  // Aggregates have their Range as the left child; a Range holds its
+  // corners as data, such as "A1:B10", and has no children.
   public TokenType type;
 
   // Raw data for this node. May be a number, operator, or an id for
@@ -106,7 +112,30 @@ public class FNode {
 
   // Construct a tree based on the provided formula string. Primary
   // means to construct trees.
+  //
+  // Results are memoized in a bounded cache keyed by the formula text
+  // (see ParseCache), so repeated formulas are only parsed once. Each
+  // caller gets its own copy of the cached tree, which it may modify.
+  // Invalid formulas are cached too: asking again throws a new
+  // exception with the same message without reparsing.
   public static FNode parseFormulaString(String formulaStr){
+    return PARSE_CACHE.parse(formulaStr);
+  }
+
+  // Parse the formula, bypassing the cache. Well-formed formulas are
+  // handled by the hand-written PrattFormulaParser; anything it is not
+  // sure about is parsed with ANTLR, which remains the reference for
+  // both accepted input and error messages.
+  static FNode parseUncached(String formulaStr){
+    FNode root = PrattFormulaParser.parse(formulaStr);
+    if(root != null){
+      return root;
+    }
+    return parseWithAntlr(formulaStr);
+  }
+
+  // Parse the formula with ANTLR, bypassing the cache and fast path.
+  static FNode parseWithAntlr(String formulaStr){
     ANTLRInputStream input = new ANTLRInputStream(formulaStr);
     FormulaLexer lexer = new FormulaLexer(input);
     CommonTokenStream tokens = new CommonTokenStream(lexer);
@@ -121,7 +150,185 @@ public class FNode {
     ParseTree tree = parser.input();
     FNode root = (new FormulaVisitorImpl()).visit(tree);
     return root;
-  }    
+  }
+
+  // Cache used by parseFormulaString()
+  public static final ParseCache PARSE_CACHE = new ParseCache(ParseCache.DEFAULT_CAPACITY);
+
+  // Thread-safe least-recently-used cache from formula text to the
+  // parsed tree, or to the message of the RuntimeException raised by
+  // parsing it. The cached trees are never handed out: every hit
+  // returns a fresh copy, as FNode's fields are public and mutable.
+  // Parsing happens outside the lock, so two threads missing on the
+  // same formula may both parse it; either result is equivalent.
+  public static class ParseCache {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final LinkedHashMap<String, Object> entries;
+    private long hits, misses;
+
+    public ParseCache(final int capacity){
+      entries = new LinkedHashMap<String, Object>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest){
+          return size() > capacity;
+        }
+      };
+    }
+
+    // Return a copy of the cached tree for the formula, parsing it on
+    // a miss.
+    public FNode parse(String formulaStr){
+      Object cached;
+      synchronized(this){
+        cached = entries.get(formulaStr);
+        if(cached != null){
+          hits++;
+        }
+        else{
+          misses++;
+        }
+      }
+      if(cached == null){
+        try{
+          cached = parseUncached(formulaStr);
+        }
+        catch(RuntimeException e){
+          synchronized(this){
+            entries.put(formulaStr, new Failure(e.getMessage()));
+          }
+          throw e;
+        }
+        synchronized(this){
+          entries.put(formulaStr, cached);
+        }
+      }
+      if(cached instanceof Failure){
+        throw new RuntimeException(((Failure) cached).message);
+      }
+      return copy((FNode) cached);
+    }
+
+    // The message of a formula which failed to parse
+    private static final class Failure {
+      final String message;
+
+      Failure(String message){
+        this.message = message;
+      }
+    }
+
+    public synchronized long hits(){
+      return hits;
+    }
+
+    public synchronized long misses(){
+      return misses;
+    }
+
+    public synchronized int size(){
+      return entries.size();
+    }
+
+    // Drop all entries and reset the counters
+    public synchronized void clear(){
+      entries.clear();
+      hits = 0;
+      misses = 0;
+    }
+  }
+
+  // Return a deep copy of the tree rooted at the given node
+  public static FNode copy(FNode node){
+    if(node == null){
+      return null;
+    }
+    return new FNode(node.type, node.data, copy(node.left), copy(node.right));
+  }
+
+  // Return a simplified tree which evaluates to exactly the same value
+  // as the given one. Subtrees made only of numbers are folded into a
+  // single Number node, double negation collapses, and operations with
+  // an identity operand are dropped where IEEE 754 arithmetic
+  // guarantees the same result for every value, including -0.0, the
+  // infinities and NaN:
+  //
+  //   x - 0  ->  x        x + -0  ->  x        -0 + x  ->  x
+  //   x * 1  ->  x        1 * x   ->  x        x / 1   ->  x
+  //
+  // Identities such as x + 0 (which turns -0.0 into 0.0) and x * 0
+  // are left alone. CellID and Range nodes are never removed so the
+  // upstream cells of the formula are unchanged. The given tree is not
+  // modified; unchanged subtrees are shared with the result.
+  public static FNode simplify(FNode node){
+    if(node == null || node.type == TokenType.Number || node.type == TokenType.CellID
+       || node.type == TokenType.Range){
+      return node;
+    }
+    FNode left = simplify(node.left);
+    if(node.type == TokenType.Negate){
+      if(isNumber(left)){
+        return number(numberOf(left) * -1);
+      }
+      if(left != null && left.type == TokenType.Negate){
+        return left.left;
+      }
+      return left == node.left ? node : new FNode(node.type, node.data, left, null);
+    }
+
+    FNode right = simplify(node.right);
+    if(isNumber(left) && isNumber(right)){
+      double l = numberOf(left), r = numberOf(right);
+      switch(node.type){
+        case Plus:     return number(l + r);
+        case Minus:    return number(l - r);
+        case Multiply: return number(l * r);
+        case Divide:   return number(l / r);
+        default:       break;
+      }
+    }
+    switch(node.type){
+      case Plus:
+        if(isNumber(right, -0.0)) return left;
+        if(isNumber(left, -0.0))  return right;
+        break;
+      case Minus:
+        if(isNumber(right, 0.0))  return left;
+        break;
+      case Multiply:
+        if(isNumber(right, 1.0))  return left;
+        if(isNumber(left, 1.0))   return right;
+        break;
+      case Divide:
+        if(isNumber(right, 1.0))  return left;
+        break;
+      default:
+        break;
+    }
+    if(left == node.left && right == node.right){
+      return node;
+    }
+    return new FNode(node.type, node.data, left, right);
+  }
+
+  // Helpers for simplify(). Number nodes store the shortest string
+  // that parses back to exactly the folded double.
+  private static boolean isNumber(FNode node){
+    return node != null && node.type == TokenType.Number;
+  }
+
+  private static boolean isNumber(FNode node, double value){
+    return isNumber(node) &&
+      Double.doubleToRawLongBits(numberOf(node)) == Double.doubleToRawLongBits(value);
+  }
+
+  private static double numberOf(FNode node){
+    return Double.parseDouble(node.data);
+  }
+
+  private static FNode number(double value){
+    return new FNode(TokenType.Number, Double.toString(value), null, null);
+  }
 
   // Main method to test construction. Attempts to parse the formula
   // given as the first command line argument and print out its contents as a parsed tree.
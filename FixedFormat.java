@@ -0,0 +1,59 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Formats doubles with one decimal digit exactly as
+// String.format("%.1f", value) does in a locale using '.' as decimal
+// separator, without going through java.util.Formatter.
+//
+// Formatter rounds half up on the shortest decimal digits which
+// identify the double (those of Double.toString), not on its exact
+// binary value, so 0.15 shows as "0.2". It keeps the sign of negative
+// values rounding to zero, so -0.01 shows as "-0.0". For magnitudes
+// below FAST_LIMIT the value times ten is rounded in floating point;
+// the error of that product and the distance between the shortest
+// digits and the exact value are both far below TIE_MARGIN, so unless
+// the tenths fraction lies within TIE_MARGIN of one half the result is
+// the same. Larger values and near ties take the exact route through
+// BigDecimal.
+public class FixedFormat {
+	static final double FAST_LIMIT = 1e9;
+	static final double TIE_MARGIN = 1e-4;
+
+	// Return value formatted like String.format("%.1f", value).
+	public static String oneDecimal(double value) {
+		if (value != value)
+			return "NaN";
+		boolean negative = Double.doubleToRawLongBits(value) < 0;
+		double magnitude = Math.abs(value);
+		if (magnitude == Double.POSITIVE_INFINITY)
+			return negative ? "-Infinity" : "Infinity";
+		if (magnitude >= FAST_LIMIT)
+			return exact(negative, magnitude);
+		double tenths = magnitude * 10;
+		double whole = Math.floor(tenths);
+		double fraction = tenths - whole;
+		if (Math.abs(fraction - 0.5) < TIE_MARGIN)
+			return exact(negative, magnitude);
+		long rounded = (long) whole + (fraction > 0.5 ? 1 : 0);
+		
+		// At most 11 digits, a sign and a point
+		char[] chars = new char[13];
+		int pos = chars.length;
+		chars[--pos] = (char) ('0' + rounded % 10);
+		chars[--pos] = '.';
+		rounded /= 10;
+		do {
+			chars[--pos] = (char) ('0' + rounded % 10);
+			rounded /= 10;
+		} while (rounded != 0);
+		if (negative)
+			chars[--pos] = '-';
+		return new String(chars, pos, chars.length - pos);
+	}
+
+	private static String exact(boolean negative, double magnitude) {
+		String digits = new BigDecimal(Double.toString(magnitude))
+			.setScale(1, RoundingMode.HALF_UP).toPlainString();
+		return negative ? "-" + digits : digits;
+	}
+}
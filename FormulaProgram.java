@@ -0,0 +1,373 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A formula tree compiled into a flat postfix program. Compiling
+// happens once when a formula cell is made; afterwards every
+// evaluation runs a tight loop over an int array of instructions
+// using a preallocated double stack, so no Doubles are boxed and no
+// number literals are re-parsed.
+//
+// Each instruction packs an opcode into its low bits and, for the
+// two push instructions, an index into the constant pool or the cell
+// slot table into its remaining bits. Evaluation applies exactly the
+// same double operations in the same order as
+// Cell.evalFormulaTree() so results are bit-identical. Cell slots
+// hold packed cell references (see CellRef) which are looked up
+// directly in the sheet's primitive-keyed cell map.
+//
+// Evaluation is split in two so that it never throws: load(..) reads
+// every input cell once and reports the first unusable one as a
+// Cell.ErrorKind, and only if there is none does evaluate() run the
+// instructions over the loaded values.
+//
+// Aggregates such as SUM(A1:A100) read a range slot holding the two
+// packed corners of the range; load(..) folds each distinct range once
+// into RangeIndex.Totals, through the sheet's RangeIndex when given,
+// and the AGGREGATE instruction picks the function's value from them.
+// Its index bits hold the range slot and the aggregate function.
+//
+// A program owns its evaluation stack and so must not be run by two
+// threads at once. Each formula cell holds its own program which is
+// only evaluated by the thread recalculating that cell.
+public class FormulaProgram {
+	static final int PUSH_CONST = 0;
+	static final int PUSH_CELL = 1;
+	static final int ADD = 2;
+	static final int SUBTRACT = 3;
+	static final int MULTIPLY = 4;
+	static final int DIVIDE = 5;
+	static final int NEGATE = 6;
+	static final int AGGREGATE = 7;
+	
+	static final int OPCODE_BITS = 3;
+	static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+	
+	// Aggregate functions by the code stored in AGGREGATE instructions
+	static final TokenType[] AGGREGATES = {
+		TokenType.Sum, TokenType.Min, TokenType.Max, TokenType.Count, TokenType.Average
+	};
+	static final int AGGREGATE_BITS = 3;
+	
+	private final int[] code;
+	private final double[] constants;
+	private final long[] cellSlots;
+	private final double[] stack;
+	// Values of the cells in cellSlots read by the last load(..)
+	private final double[] inputs;
+	// Corners of each distinct range read by aggregates, two per range
+	private final long[] rangeSlots;
+	// Totals of the ranges in rangeSlots read by the last load(..)
+	private final RangeIndex.Totals[] totals;
+
+	FormulaProgram(int[] code, double[] constants, long[] cellSlots, long[] rangeSlots, int maxDepth) {
+		this.code = code;
+		this.constants = constants;
+		this.cellSlots = cellSlots;
+		this.rangeSlots = rangeSlots;
+		this.stack = new double[maxDepth];
+		this.inputs = new double[cellSlots.length];
+		this.totals = new RangeIndex.Totals[rangeSlots.length / 2];
+		for (int i = 0; i < totals.length; i++)
+			totals[i] = new RangeIndex.Totals();
+	}
+
+	// Compile the formula tree rooted at the given node. Number
+	// literals are parsed here once and stored in the constant pool.
+	// Repeated references to the same cell share one slot, as do
+	// repeated ranges. A reference that cannot be packed, such as "A0",
+	// and an aggregate of a range with such a corner read the slot of
+	// CellRef.INVALID, which is always blank, so the formula evaluates
+	// to BLANK_REF as one reading an empty cell does.
+	//
+	// Target Complexity: O(T)
+	// T: the number of nodes in the formula tree
+	public static FormulaProgram compile(FNode root) {
+		Compiler compiler = new Compiler();
+		compiler.emit(root);
+		int[] code = new int[compiler.code.size()];
+		for (int i = 0; i < code.length; i++)
+			code[i] = compiler.code.get(i);
+		double[] constants = new double[compiler.constants.size()];
+		for (int i = 0; i < constants.length; i++)
+			constants[i] = compiler.constants.get(i);
+		long[] cellSlots = Arrays.copyOf(compiler.cellSlots, compiler.cellCount);
+		long[] rangeSlots = Arrays.copyOf(compiler.rangeSlots, 2 * compiler.rangeCount);
+		return new FormulaProgram(code, constants, cellSlots, rangeSlots, compiler.maxDepth);
+	}
+
+	// Read the values of the cells in the cell slots from the given
+	// map for the next evaluate(). Return null if all of them are
+	// usable, otherwise the error of the first that is not: BLANK_REF
+	// for a missing cell, STRING_REF for a string cell and
+	// UPSTREAM_ERROR for a cell in error. Reading stops at that cell,
+	// so a formula with an input in error is marked in error without
+	// being evaluated. Ranges are then folded, through the index if it
+	// is not null and by scanning the map otherwise; blank and string
+	// cells in a range are skipped, but a range holding a cell in error
+	// gives UPSTREAM_ERROR.
+	//
+	// Target Complexity: O(U + G log R) with an index covering the ranges
+	// U: the number of distinct cells in the formula
+	// G: the number of columns of its distinct ranges
+	// R: the rows of those columns
+	Cell.ErrorKind load(LongObjectMap<Cell> cellMap, RangeIndex index) {
+		CellGrid grid = cellMap instanceof CellGrid ? (CellGrid) cellMap : null;
+		for (int i = 0; i < cellSlots.length; i++) {
+			if (grid != null) {
+				// Numbers kept in a chunk are read without a Cell
+				CellGrid.Chunk chunk = grid.chunkOf(cellSlots[i]);
+				int offset = CellGrid.offset(cellSlots[i]);
+				if (chunk != null && chunk.isNumber(offset)) {
+					inputs[i] = chunk.values[offset];
+					continue;
+				}
+			}
+			Cell cell = cellMap.get(cellSlots[i]);
+			if (cell == null)
+				return Cell.ErrorKind.BLANK_REF;
+			if (!cell.hasNumber())
+				return cell.isError() ? Cell.ErrorKind.UPSTREAM_ERROR : Cell.ErrorKind.STRING_REF;
+			inputs[i] = cell.doubleValue();
+		}
+		for (int i = 0; i < totals.length; i++) {
+			totals[i].reset();
+			if (index != null)
+				index.aggregate(rangeSlots[2 * i], rangeSlots[2 * i + 1], totals[i]);
+			else
+				RangeIndex.scan(cellMap, rangeSlots[2 * i], rangeSlots[2 * i + 1], totals[i]);
+			if (totals[i].errors != 0)
+				return Cell.ErrorKind.UPSTREAM_ERROR;
+		}
+		return null;
+	}
+
+	// Run the program over the values read by the last successful
+	// load(..) and return the value of the formula.
+	//
+	// Target Complexity: O(T)
+	double evaluate() {
+		double[] stack = this.stack;
+		int top = 0;
+		for (int instruction : code) {
+			switch (instruction & OPCODE_MASK) {
+			case PUSH_CONST:
+				stack[top++] = constants[instruction >>> OPCODE_BITS];
+				break;
+			case PUSH_CELL:
+				stack[top++] = inputs[instruction >>> OPCODE_BITS];
+				break;
+			case ADD:
+				top--;
+				stack[top - 1] = stack[top - 1] + stack[top];
+				break;
+			case SUBTRACT:
+				top--;
+				stack[top - 1] = stack[top - 1] - stack[top];
+				break;
+			case MULTIPLY:
+				top--;
+				stack[top - 1] = stack[top - 1] * stack[top];
+				break;
+			case DIVIDE:
+				top--;
+				stack[top - 1] = stack[top - 1] / stack[top];
+				break;
+			case NEGATE:
+				stack[top - 1] = stack[top - 1] * -1;
+				break;
+			case AGGREGATE:
+				int operand = instruction >>> OPCODE_BITS;
+				stack[top++] = totals[operand >>> AGGREGATE_BITS]
+					.valueOf(AGGREGATES[operand & ((1 << AGGREGATE_BITS) - 1)]);
+				break;
+			}
+		}
+		return stack[0];
+	}
+
+	// Return the packed references of the cells this program reads,
+	// each once. The array is the program's own and must not be
+	// modified.
+	long[] cellSlots() {
+		return cellSlots;
+	}
+
+	// Return the ranges this program reads as pairs of packed corners,
+	// top-left then bottom-right, each range once, or null if it reads
+	// none. The array is the program's own and must not be modified.
+	long[] rangeSlots() {
+		return rangeSlots.length == 0 ? null : rangeSlots;
+	}
+
+	// Number of bytes written by writeTo(..)
+	int byteSize() {
+		return 5 * 4 + code.length * 4 + constants.length * 8 + cellSlots.length * 8
+			+ rangeSlots.length * 8;
+	}
+
+	// Write the program to the buffer so it can be read back by
+	// readFrom(..) without the formula being parsed or compiled again.
+	// The layout is the stack depth followed by the instruction,
+	// constant, cell slot and range slot arrays, each preceded by its
+	// length.
+	void writeTo(ByteBuffer out) {
+		out.putInt(stack.length);
+		out.putInt(code.length);
+		for (int instruction : code)
+			out.putInt(instruction);
+		out.putInt(constants.length);
+		for (double constant : constants)
+			out.putDouble(constant);
+		out.putInt(cellSlots.length);
+		for (long slot : cellSlots)
+			out.putLong(slot);
+		out.putInt(rangeSlots.length);
+		for (long slot : rangeSlots)
+			out.putLong(slot);
+	}
+
+	// Read a program written by writeTo(..). A program cut off by the
+	// end of the buffer raises BufferUnderflowException.
+	static FormulaProgram readFrom(ByteBuffer in) {
+		int maxDepth = in.getInt();
+		int[] code = new int[length(in, 4)];
+		for (int i = 0; i < code.length; i++)
+			code[i] = in.getInt();
+		double[] constants = new double[length(in, 8)];
+		for (int i = 0; i < constants.length; i++)
+			constants[i] = in.getDouble();
+		long[] cellSlots = new long[length(in, 8)];
+		for (int i = 0; i < cellSlots.length; i++)
+			cellSlots[i] = in.getLong();
+		long[] rangeSlots = new long[length(in, 8)];
+		for (int i = 0; i < rangeSlots.length; i++)
+			rangeSlots[i] = in.getLong();
+		return new FormulaProgram(code, constants, cellSlots, rangeSlots, maxDepth);
+	}
+
+	// Read the length of an array of elements of the given size,
+	// raising BufferUnderflowException if it is negative or the array
+	// would run past the end of the buffer
+	static int length(ByteBuffer in, int elementBytes) {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining() / elementBytes)
+			throw new BufferUnderflowException();
+		return length;
+	}
+
+	// Accumulates instructions during a post-order walk of the tree,
+	// tracking the stack depth needed to run them. Slots are looked up
+	// by packed reference in hash maps, so each reference is compiled
+	// in O(1).
+	private static class Compiler {
+		List<Integer> code = new ArrayList<Integer>();
+		List<Double> constants = new ArrayList<Double>();
+		// Cell slots and range corner pairs, filled to the counts
+		long[] cellSlots = new long[4];
+		int cellCount;
+		long[] rangeSlots = new long[4];
+		int rangeCount;
+		// Slot of each cell, and of each range by its corners
+		LongIntMap cellSlotOf = new LongIntMap();
+		LongObjectMap<LongIntMap> rangeSlotOf = new LongObjectMap<LongIntMap>();
+		int depth, maxDepth;
+
+		void emit(FNode node) {
+			if (node == null) {
+				// Matches the value of an empty subtree in evalFormulaTree()
+				push(PUSH_CONST, constants.size());
+				constants.add(0.0);
+				return;
+			}
+			switch (node.type) {
+			case Number:
+				push(PUSH_CONST, constants.size());
+				constants.add(Double.parseDouble(node.data));
+				break;
+			case CellID:
+				push(PUSH_CELL, cellSlot(CellRef.tryPack(node.data)));
+				break;
+			case Negate:
+				emit(node.left);
+				code.add(NEGATE);
+				break;
+			case Sum:
+			case Min:
+			case Max:
+			case Count:
+			case Average:
+				if (node.left == null || node.left.type != TokenType.Range)
+					throw new RuntimeException("Aggregate without a range");
+				long[] corners = RangeIndex.corners(node.left.data);
+				if (corners == null) {
+					push(PUSH_CELL, cellSlot(CellRef.INVALID));
+					break;
+				}
+				int range = rangeSlot(corners[0], corners[1]);
+				push(AGGREGATE, (range << AGGREGATE_BITS) | Arrays.asList(AGGREGATES).indexOf(node.type));
+				break;
+			default:
+				emit(node.left);
+				emit(node.right);
+				code.add(binaryOpcode(node.type));
+				depth--;
+				break;
+			}
+		}
+
+		// Return the slot of a cell, adding it if it is new
+		int cellSlot(long ref) {
+			int slot = cellSlotOf.get(ref);
+			if (slot >= 0)
+				return slot;
+			if (cellCount == cellSlots.length)
+				cellSlots = Arrays.copyOf(cellSlots, 2 * cellCount);
+			cellSlots[cellCount] = ref;
+			cellSlotOf.put(ref, cellCount);
+			return cellCount++;
+		}
+
+		// Return the slot of the range from..to of an aggregate, adding
+		// it if it is new
+		int rangeSlot(long from, long to) {
+			LongIntMap slots = rangeSlotOf.get(from);
+			if (slots == null) {
+				slots = new LongIntMap();
+				rangeSlotOf.put(from, slots);
+			}
+			int slot = slots.get(to);
+			if (slot >= 0)
+				return slot;
+			if (2 * rangeCount == rangeSlots.length)
+				rangeSlots = Arrays.copyOf(rangeSlots, 4 * rangeCount);
+			rangeSlots[2 * rangeCount] = from;
+			rangeSlots[2 * rangeCount + 1] = to;
+			slots.put(to, rangeCount);
+			return rangeCount++;
+		}
+
+		void push(int opcode, int index) {
+			code.add((index << OPCODE_BITS) | opcode);
+			depth++;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		static int binaryOpcode(TokenType type) {
+			switch (type) {
+			case Plus:
+				return ADD;
+			case Minus:
+				return SUBTRACT;
+			case Multiply:
+				return MULTIPLY;
+			case Divide:
+				return DIVIDE;
+			default:
+				throw new RuntimeException("Unexpected token in formula: " + type);
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+// An open-addressing hash map from non-zero long keys to non-negative
+// ints, the primitive counterpart of LongObjectMap for per-cell
+// counters and positions. A lookup of an absent key returns -1. Keys
+// and values live in parallel arrays probed linearly; a 0 key marks
+// an empty slot and removal shifts later entries of the probe run
+// back so no tombstones are needed.
+//
+// Entries may be iterated without allocation:
+//
+// for (int i = map.next(-1); i >= 0; i = map.next(i)) {
+//     long key = map.keyAt(i);
+//     int value = map.valueAt(i);
+// }
+//
+// A slot index stays valid until the map is next modified.
+public class LongIntMap {
+	
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	// Construct an empty map
+	public LongIntMap() {
+		this(8);
+	}
+
+	// Construct an empty map able to hold the given number of entries
+	// without resizing
+	public LongIntMap(int expectedSize) {
+		int capacity = LongSet.tableSize(expectedSize);
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return slot(key) >= 0;
+	}
+
+	// Return the value for key, or -1 if it is absent.
+	public int get(long key) {
+		int i = slot(key);
+		return i < 0 ? -1 : values[i];
+	}
+
+	// Return the slot holding key, or -1 if it is absent.
+	public int slot(long key) {
+		for (int i = LongSet.hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	// Associate value with key, returning the previous value or -1.
+	public int put(long key, int value) {
+		if (key == 0)
+			throw new IllegalArgumentException("LongIntMap keys must be non-zero");
+		int i = LongSet.hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				int old = values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 4 > keys.length * 3)
+			rehash(keys.length << 1);
+		return -1;
+	}
+
+	// Remove the entry for key, returning its value or -1.
+	public int remove(long key) {
+		int gap = slot(key);
+		if (gap < 0)
+			return -1;
+		int old = values[gap];
+		// Shift back entries whose probe run passes through the gap
+		for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = LongSet.hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		keys[gap] = 0;
+		size--;
+		return old;
+	}
+
+	// Remove every entry, keeping the current capacity
+	public void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+	}
+
+	// Number of slots; every slot index is below this
+	public int capacity() {
+		return keys.length;
+	}
+
+	// Return the first occupied slot after the given one, or -1 if
+	// there is none. Pass -1 to find the first occupied slot.
+	public int next(int slot) {
+		for (int i = slot + 1; i < keys.length; i++) {
+			if (keys[i] != 0)
+				return i;
+		}
+		return -1;
+	}
+
+	// Return the key stored in an occupied slot
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	// Return the value stored in an occupied slot
+	public int valueAt(int slot) {
+		return values[slot];
+	}
+
+	// Replace the value stored in an occupied slot
+	public void setValueAt(int slot, int value) {
+		values[slot] = value;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0)
+				continue;
+			int i = LongSet.hash(oldKeys[j]) & mask;
+			while (keys[i] != 0)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
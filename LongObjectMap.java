@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+// An open-addressing hash map from non-zero long keys to objects,
+// used to store cells and dependency links by packed cell reference
+// (see CellRef). Keys and values live in parallel arrays probed
+// linearly; a 0 key marks an empty slot. Removal shifts later entries
+// of the probe run back so no tombstones are needed. Null values are
+// allowed and are distinct from absent keys.
+//
+// Entries may be iterated without allocation:
+//
+// for (int i = map.next(-1); i >= 0; i = map.next(i)) {
+//     long key = map.keyAt(i);
+//     V value = map.valueAt(i);
+// }
+//
+// A slot index stays valid until the map is next modified.
+public class LongObjectMap<V> {
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	// Construct an empty map
+	public LongObjectMap() {
+		this(8);
+	}
+
+	// Construct an empty map able to hold the given number of entries
+	// without resizing
+	public LongObjectMap(int expectedSize) {
+		int capacity = LongSet.tableSize(expectedSize);
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	// Return the value for key, or null if it is absent.
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = find(key);
+		return i < 0 ? null : (V) values[i];
+	}
+
+	// Return the slot holding key, or -1 if it is absent.
+	public int slot(long key) {
+		return find(key);
+	}
+
+	// Probe for key without going through methods a subclass such as
+	// CellGrid may override
+	private int find(long key) {
+		for (int i = LongSet.hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	// Associate value with key, returning the previous value or null.
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (key == 0)
+			throw new IllegalArgumentException("LongObjectMap keys must be non-zero");
+		int i = LongSet.hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 4 > keys.length * 3)
+			rehash(keys.length << 1);
+		return null;
+	}
+
+	// Remove the entry for key, returning its value or null.
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int gap = find(key);
+		if (gap < 0)
+			return null;
+		V old = (V) values[gap];
+		// Shift back entries whose probe run passes through the gap
+		for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = LongSet.hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		keys[gap] = 0;
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	// Remove every entry, keeping the current capacity
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	// Number of slots; every slot index is below this
+	public int capacity() {
+		return keys.length;
+	}
+
+	// Return the first occupied slot after the given one, or -1 if
+	// there is none. Pass -1 to find the first occupied slot.
+	public int next(int slot) {
+		for (int i = slot + 1; i < keys.length; i++) {
+			if (keys[i] != 0)
+				return i;
+		}
+		return -1;
+	}
+
+	// Return the key stored in an occupied slot
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	// Return the value stored in an occupied slot
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0)
+				continue;
+			int i = LongSet.hash(oldKeys[j]) & mask;
+			while (keys[i] != 0)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+// An open-addressing hash set of non-zero long keys, used to hold
+// packed cell references (see CellRef) without boxing. Keys live in
+// a single array probed linearly; 0 marks an empty slot. Removal
+// shifts later entries of the probe run back so no tombstones are
+// needed.
+//
+// Slots may be iterated without allocation:
+//
+// for (int i = set.next(-1); i >= 0; i = set.next(i)) {
+//     long key = set.keyAt(i);
+// }
+//
+// A slot index stays valid until the set is next modified, which
+// also allows callers to keep per-key data in an array indexed by
+// slot() and sized by capacity().
+public class LongSet {
+	
+	// Shared empty set returned by lookups that find nothing. It must
+	// never be modified.
+	static final LongSet EMPTY = new LongSet(0);
+	
+	private long[] keys;
+	private int size;
+	private int mask;
+
+	// Construct an empty set
+	public LongSet() {
+		this(2);
+	}
+
+	// Construct an empty set able to hold the given number of keys
+	// without resizing
+	public LongSet(int expectedSize) {
+		int capacity = tableSize(expectedSize);
+		keys = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	// Smallest power of two table keeping the load factor at or below
+	// 3/4 for the given number of keys
+	static int tableSize(int expectedSize) {
+		int capacity = 2;
+		while (capacity * 3 < expectedSize * 4)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	// Spread the bits of a key over the whole hash
+	static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long key) {
+		return slot(key) >= 0;
+	}
+
+	// Return the slot holding key, or -1 if it is absent.
+	public int slot(long key) {
+		for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	// Add the given key, returning false if it was already present.
+	public boolean add(long key) {
+		if (key == 0)
+			throw new IllegalArgumentException("LongSet keys must be non-zero");
+		if (this == EMPTY)
+			throw new UnsupportedOperationException("LongSet.EMPTY is immutable");
+		int i = hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return false;
+		}
+		keys[i] = key;
+		if (++size * 4 > keys.length * 3)
+			rehash(keys.length << 1);
+		return true;
+	}
+
+	// Remove the given key, returning false if it was not present.
+	public boolean remove(long key) {
+		int gap = slot(key);
+		if (gap < 0)
+			return false;
+		// Shift back entries whose probe run passes through the gap
+		for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+			int home = hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				gap = i;
+			}
+		}
+		keys[gap] = 0;
+		size--;
+		return true;
+	}
+
+	// Number of slots; every slot index is below this
+	public int capacity() {
+		return keys.length;
+	}
+
+	// Return the first occupied slot after the given one, or -1 if
+	// there is none. Pass -1 to find the first occupied slot.
+	public int next(int slot) {
+		for (int i = slot + 1; i < keys.length; i++) {
+			if (keys[i] != 0)
+				return i;
+		}
+		return -1;
+	}
+
+	// Return the key stored in an occupied slot
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	// Return the keys in slot order
+	public long[] toArray() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = next(-1); i >= 0; i = next(i))
+			result[n++] = keys[i];
+		return result;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		keys = new long[capacity];
+		mask = capacity - 1;
+		for (long key : oldKeys) {
+			if (key == 0)
+				continue;
+			int i = hash(key) & mask;
+			while (keys[i] != 0)
+				i = (i + 1) & mask;
+			keys[i] = key;
+		}
+	}
+
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
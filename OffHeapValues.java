@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+// The values and error states of formulas kept outside the Java heap,
+// so that sheets with many millions of formulas do not give the
+// garbage collector millions of values to trace and copy. Each formula
+// of a sheet using the store holds a dense slot in it (see
+// Spreadsheet.setOffHeapValues(..)); its FormulaCell keeps only the
+// slot, its contents and its program on the heap.
+//
+// Slots live in segments of SEGMENT_SLOTS, each a direct buffer of
+// doubles for the values and a direct buffer of bytes for the states,
+// so the store grows without copying. A state is 0 for a usable value
+// and otherwise the ordinal of the Cell.ErrorKind plus one, as in
+// SheetSnapshot. Released slots are reused before new ones are taken.
+//
+// Slots are allocated and released by the thread editing the sheet;
+// different slots may be read and written by many threads at once, as
+// parallel recalculation does.
+public class OffHeapValues {
+	static final int SEGMENT_BITS = 16;
+	static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+
+	private static final Cell.ErrorKind[] ERRORS = Cell.ErrorKind.values();
+
+	private DoubleBuffer[] values = new DoubleBuffer[0];
+	private ByteBuffer[] states = new ByteBuffer[0];
+	// Slots below this have been handed out at least once
+	private int nextSlot;
+	// Released slots, used before new ones
+	private int[] free = new int[16];
+	private int freeCount;
+
+	// Return the number of slots in use
+	public int size() {
+		return nextSlot - freeCount;
+	}
+
+	// Return the number of bytes of off-heap memory held
+	public long offHeapBytes() {
+		return (long) values.length * SEGMENT_SLOTS * (Double.BYTES + 1);
+	}
+
+	// Take a slot for a new value, adding a segment if every slot is
+	// in use. The slot starts out as not evaluated.
+	//
+	// Target Complexity: O(1) amortized
+	int allocate() {
+		int slot;
+		if (freeCount > 0) {
+			slot = free[--freeCount];
+		} else {
+			slot = nextSlot++;
+			if (slot >>> SEGMENT_BITS == values.length)
+				addSegment();
+		}
+		set(slot, Cell.ErrorKind.NOT_EVALUATED, 0.0);
+		return slot;
+	}
+
+	// Give back a slot no longer used
+	void release(int slot) {
+		if (freeCount == free.length)
+			free = Arrays.copyOf(free, freeCount * 2);
+		free[freeCount++] = slot;
+	}
+
+	double value(int slot) {
+		return values[slot >>> SEGMENT_BITS].get(slot & (SEGMENT_SLOTS - 1));
+	}
+
+	// Return the error of the value in slot, or null if it is usable
+	Cell.ErrorKind error(int slot) {
+		int state = states[slot >>> SEGMENT_BITS].get(slot & (SEGMENT_SLOTS - 1));
+		return state == 0 ? null : ERRORS[state - 1];
+	}
+
+	// Store the error, null for none, and the value of a slot
+	void set(int slot, Cell.ErrorKind error, double value) {
+		int segment = slot >>> SEGMENT_BITS, index = slot & (SEGMENT_SLOTS - 1);
+		values[segment].put(index, value);
+		states[segment].put(index, (byte) (error == null ? 0 : error.ordinal() + 1));
+	}
+
+	private void addSegment() {
+		int segment = values.length;
+		values = Arrays.copyOf(values, segment + 1);
+		states = Arrays.copyOf(states, segment + 1);
+		values[segment] = ByteBuffer.allocateDirect(SEGMENT_SLOTS * Double.BYTES)
+			.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		states[segment] = ByteBuffer.allocateDirect(SEGMENT_SLOTS);
+	}
+}
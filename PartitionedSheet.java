@@ -0,0 +1,447 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// A spreadsheet which many threads may edit at once. Edits to cells
+// whose dependencies do not connect them are applied and recalculated
+// in parallel; only edits within one group of connected cells wait
+// for each other.
+//
+// Cells are split into dependency components: sets of cells, each with
+// its own Spreadsheet, such that every formula and every cell linked to
+// it in either direction is in the same component, as are the cells a
+// formula refers to even while they are blank. Each component's sheet
+// therefore does its own cycle checks and recalculation, which are
+// exactly those the whole sheet would do. Cells without links are kept
+// in one loose sheet per stripe instead of a component each. When an
+// edit links cells of different components, the smaller component is
+// merged into the larger one first. Components are never split again
+// when links are removed, nor when the edit linking them is rejected;
+// that only costs parallelism. Cells gathered into a component for a
+// rejected edit are given back.
+//
+// A range read by a formula is not expanded into its cells. The range
+// itself is recorded as a footprint of the formula (see Footprints),
+// and only the cells in it which hold something or belong to a
+// component join the formula's component. A cell named later inside
+// the range joins the component then, as the footprint links it to the
+// formula. Footprints are recorded before an edit is applied and kept
+// if it is rejected, which again only costs parallelism.
+//
+// Cell IDs are partitioned over STRIPES locks by the hash of their
+// packed reference (see CellRef). A component records the stripes of
+// all its cells, and touching a component requires holding all of
+// them. An edit locks the stripes of the cells it names, then grows
+// that set to cover every component involved until it stops growing.
+// Locks are always taken in ascending stripe order, so edits cannot
+// deadlock. Reads lock only the stripe of the cell they read, so
+// readers of one component run together but never with its writers.
+// The display strings numbers format on first read are the only state
+// a read changes, and racing readers only format them twice (see
+// CellGrid.Chunk.display(..)).
+public class PartitionedSheet {
+	static final int STRIPES = 64;
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	// Component of each ref in a component, by stripe; refs absent
+	// here are either loose or blank
+	private final LongObjectMap<Component>[] owners;
+	// Unlinked cells of each stripe
+	private final Spreadsheet[] loose = new Spreadsheet[STRIPES];
+	private final Footprints footprints = new Footprints();
+
+	// Construct an empty partitioned spreadsheet
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PartitionedSheet() {
+		owners = new LongObjectMap[STRIPES];
+		for (int s = 0; s < STRIPES; s++) {
+			locks[s] = new ReentrantLock();
+			owners[s] = new LongObjectMap<Component>();
+			loose[s] = new Spreadsheet();
+		}
+	}
+
+	// A group of connected cells and the sheet holding them. Guarded by
+	// the locks of all stripes in its stripe mask.
+	static final class Component {
+		final Spreadsheet sheet = new Spreadsheet();
+		// Every ref owned by this component, blank ones included
+		final LongSet members = new LongSet();
+		// Bit s is set if some member lies in stripe s
+		long stripes;
+	}
+
+	static int stripe(long ref) {
+		return LongSet.hash(ref) & (STRIPES - 1);
+	}
+
+	// Set the given cell as Spreadsheet.setCell(..) does. Formulas are
+	// parsed before any lock is taken.
+	public void setCell(String id, String contents) {
+		if (contents == null || contents.trim().equals("")) {
+			deleteCell(id);
+			return;
+		}
+		long ref = CellRef.pack(id);
+		Cell cell = Cell.make(contents);
+		long[] ranges = cell.getRangeRefs();
+		// The cell, the cells it refers to and those in its ranges which
+		// hold something, and the formulas whose ranges hold the cell
+		LongSet named = cell.getUpstreamRefs();
+		named.add(ref);
+		LongSet readers = new LongSet();
+
+		long held = lockCovering(ref, ranges, named, readers);
+		try {
+			Component owner = owners[stripe(ref)].get(ref);
+			if (owner == null && ranges == null && named.size() == 1 && readers.isEmpty()) {
+				// Unlinked before and after
+				loose[stripe(ref)].setCell(ref, cell);
+				footprints.record(ref, null);
+				return;
+			}
+			// Gather every named cell and every reader into one component
+			Component target = owner;
+			for (LongSet refs : new LongSet[] { named, readers }) {
+				for (int i = refs.next(-1); i >= 0; i = refs.next(i)) {
+					long name = refs.keyAt(i);
+					Component other = owners[stripe(name)].get(name);
+					if (other == null || other == target)
+						continue;
+					target = target == null ? other : merge(target, other);
+				}
+			}
+			if (target == null)
+				target = new Component();
+			LongSet adopted = new LongSet();
+			for (int i = named.next(-1); i >= 0; i = named.next(i)) {
+				long name = named.keyAt(i);
+				if (owners[stripe(name)].get(name) == target)
+					continue;
+				// Loose or blank until now
+				Cell moved = loose[stripe(name)].takeUnlinked(name);
+				if (moved != null)
+					target.sheet.putUnlinked(name, moved);
+				adopt(target, name);
+				adopted.add(name);
+			}
+			try {
+				target.sheet.setCell(ref, cell);
+			} catch (RuntimeException e) {
+				release(target, adopted);
+				throw e;
+			}
+			footprints.record(ref, ranges);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	// Delete the given cell as Spreadsheet.deleteCell(..) does.
+	public void deleteCell(String id) {
+		long ref = CellRef.pack(id);
+		LongSet named = new LongSet();
+		named.add(ref);
+		long held = lockCovering(ref, null, named, null);
+		try {
+			sheetOf(ref).deleteCell(id);
+			footprints.record(ref, null);
+			if (owners[stripe(ref)].get(ref) == null)
+				footprints.unmark(ref);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	// Retrieve the display string of the given cell as
+	// Spreadsheet.getCellDisplayString(..) does.
+	public String getCellDisplayString(String id) {
+		long ref = CellRef.pack(id);
+		ReentrantLock lock = locks[stripe(ref)];
+		lock.lock();
+		try {
+			return sheetOf(ref).getCellDisplayString(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Retrieve the contents of the given cell as
+	// Spreadsheet.getCellContents(..) does.
+	public String getCellContents(String id) {
+		long ref = CellRef.pack(id);
+		ReentrantLock lock = locks[stripe(ref)];
+		lock.lock();
+		try {
+			return sheetOf(ref).getCellContents(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Produce a save string of the whole sheet, in the format of
+	// Spreadsheet.toSaveString(). Waits for all edits in progress.
+	public String toSaveString() {
+		long all = -1L;
+		lock(all);
+		try {
+			StringBuilder strToRet = new StringBuilder();
+			for (int s = 0; s < STRIPES; s++)
+				strToRet.append(loose[s].toSaveString());
+			LongSet seen = new LongSet();
+			for (int s = 0; s < STRIPES; s++) {
+				LongObjectMap<Component> stripeOwners = owners[s];
+				for (int i = stripeOwners.next(-1); i >= 0; i = stripeOwners.next(i)) {
+					Component component = stripeOwners.valueAt(i);
+					// Every component is listed once, under its first member
+					if (seen.add(component.members.keyAt(component.members.next(-1))))
+						strToRet.append(component.sheet.toSaveString());
+				}
+			}
+			return strToRet.toString();
+		} finally {
+			unlock(all);
+		}
+	}
+
+	// The sheet holding ref. Called holding the lock of its stripe.
+	private Spreadsheet sheetOf(long ref) {
+		int s = stripe(ref);
+		Component owner = owners[s].get(ref);
+		return owner == null ? loose[s] : owner.sheet;
+	}
+
+	// Make ref a member of the component. Called holding the locks of
+	// the component and of ref's stripe.
+	private void adopt(Component component, long ref) {
+		int s = stripe(ref);
+		owners[s].put(ref, component);
+		component.members.add(ref);
+		component.stripes |= 1L << s;
+	}
+
+	// Give the refs adopted for an edit the component rejected back to
+	// the loose sheets, with their cells. Called holding the locks of
+	// the component.
+	private void release(Component component, LongSet refs) {
+		for (int i = refs.next(-1); i >= 0; i = refs.next(i)) {
+			long ref = refs.keyAt(i);
+			int s = stripe(ref);
+			owners[s].remove(ref);
+			component.members.remove(ref);
+			Cell cell = component.sheet.takeUnlinked(ref);
+			if (cell != null)
+				loose[s].putUnlinked(ref, cell);
+		}
+	}
+
+	// Merge the smaller of two components into the larger and return
+	// the one remaining. Called holding the locks of both.
+	//
+	// Target Complexity: O(N_smaller + L_smaller)
+	private Component merge(Component a, Component b) {
+		Component larger = a.members.size() >= b.members.size() ? a : b;
+		Component smaller = larger == a ? b : a;
+		larger.sheet.absorb(smaller.sheet);
+		for (int i = smaller.members.next(-1); i >= 0; i = smaller.members.next(i))
+			adopt(larger, smaller.members.keyAt(i));
+		return larger;
+	}
+
+	// Lock the stripes of the named refs, of the readers and of every
+	// component owning one of them, and return the mask of stripes held.
+	// Unless readers is null, as for a deletion, the footprints are
+	// gathered first: the ranges of ref are recorded, the formulas whose
+	// ranges hold a named ref are added to readers and the refs in the
+	// ranges which are marked are added to named. Components may grow
+	// and cells may be set while this looks, so the mask is widened and
+	// locked again until it covers all of them; it only grows, so this
+	// ends after at most STRIPES rounds.
+	private long lockCovering(long ref, long[] ranges, LongSet named, LongSet readers) {
+		long mask = 0;
+		for (int i = named.next(-1); i >= 0; i = named.next(i))
+			mask |= 1L << stripe(named.keyAt(i));
+		while (true) {
+			lock(mask);
+			if (readers != null)
+				footprints.gather(ref, ranges, named, readers);
+			long needed = covering(named, mask);
+			if (readers != null)
+				needed |= covering(readers, mask);
+			if (needed == mask)
+				return mask;
+			unlock(mask);
+			mask = needed;
+		}
+	}
+
+	// Return mask with the stripes of refs and of the components owning
+	// those of them in mask added. Called holding the locks in mask.
+	private long covering(LongSet refs, long mask) {
+		long needed = mask;
+		for (int i = refs.next(-1); i >= 0; i = refs.next(i)) {
+			long ref = refs.keyAt(i);
+			int s = stripe(ref);
+			needed |= 1L << s;
+			if ((mask & (1L << s)) == 0)
+				continue;
+			Component owner = owners[s].get(ref);
+			if (owner != null)
+				needed |= owner.stripes;
+		}
+		return needed;
+	}
+
+	// Take the locks of the stripes in mask in ascending order
+	private void lock(long mask) {
+		for (int s = 0; s < STRIPES; s++) {
+			if ((mask & (1L << s)) != 0)
+				locks[s].lock();
+		}
+	}
+
+	private void unlock(long mask) {
+		for (int s = STRIPES - 1; s >= 0; s--) {
+			if ((mask & (1L << s)) != 0)
+				locks[s].unlock();
+		}
+	}
+
+	// The ranges read by formulas, and the marked refs: those which may
+	// hold a cell or belong to a component, over all stripes. Every
+	// marked ref inside the ranges of a formula is in the formula's
+	// component, so no range link of a component's DAG reaches a node
+	// of another and components can be merged as they are. The methods
+	// are synchronized with each other so that an edit recording a range
+	// and looking for the refs in it and an edit naming a ref in that
+	// range cannot miss each other: whichever comes second finds the
+	// first, and then waits for its locks. Refs stay marked, even if the
+	// edit naming them is rejected, until their cell is deleted outside
+	// any component.
+	static final class Footprints {
+		// Ranges read by each formula, as from, to pairs
+		private final LongObjectMap<long[]> ranges = new LongObjectMap<long[]>();
+		// Formulas reading a range over each column
+		private final LongObjectMap<LongSet> readers = new LongObjectMap<LongSet>();
+		// Rows of the marked refs, by column
+		private final LongObjectMap<LongSet> marked = new LongObjectMap<LongSet>();
+
+		// Mark the named refs of an edit of ref and add the given ranges
+		// to those ref reads. Add to readers every other formula whose
+		// ranges hold a named ref, and to named the marked refs in the
+		// ranges.
+		//
+		// Target Complexity: O(U * F + C * min(R, N))
+		// U : refs named
+		// F : ranges over the column of a named ref
+		// C : columns of the ranges
+		// R : rows of the ranges
+		// N : refs marked in a column
+		synchronized void gather(long ref, long[] refRanges, LongSet named, LongSet readersOfNamed) {
+			for (int i = named.next(-1); i >= 0; i = named.next(i)) {
+				long name = named.keyAt(i);
+				setOf(marked, CellRef.column(name)).add(CellRef.row(name));
+				LongSet columnReaders = readers.get(CellRef.column(name));
+				for (int j = columnReaders == null ? -1 : columnReaders.next(-1); j >= 0; j = columnReaders.next(j)) {
+					long reader = columnReaders.keyAt(j);
+					if (reader != ref && holds(ranges.get(reader), name))
+						readersOfNamed.add(reader);
+				}
+			}
+			if (refRanges == null)
+				return;
+			read(ref, refRanges);
+			for (int i = 0; i < refRanges.length; i += 2) {
+				int first = CellRef.row(refRanges[i]), last = CellRef.row(refRanges[i + 1]);
+				for (long column = CellRef.column(refRanges[i]); column <= CellRef.column(refRanges[i + 1]); column++) {
+					LongSet rows = marked.get(column);
+					if (rows == null)
+						continue;
+					if (last - first < rows.size()) {
+						for (long row = first; row <= last; row++) {
+							if (rows.contains(row))
+								named.add((column << 32) | row);
+						}
+					} else {
+						for (int j = rows.next(-1); j >= 0; j = rows.next(j)) {
+							long row = rows.keyAt(j);
+							if (row >= first && row <= last)
+								named.add((column << 32) | row);
+						}
+					}
+				}
+			}
+		}
+
+		// Record that the formula at ref reads exactly the given ranges,
+		// or none if null, after an edit of it is applied
+		synchronized void record(long ref, long[] refRanges) {
+			forget(ref);
+			if (refRanges != null)
+				read(ref, refRanges);
+		}
+
+		// Unmark ref, whose cell was deleted outside any component
+		synchronized void unmark(long ref) {
+			LongSet rows = marked.get(CellRef.column(ref));
+			if (rows == null)
+				return;
+			rows.remove(CellRef.row(ref));
+			if (rows.isEmpty())
+				marked.remove(CellRef.column(ref));
+		}
+
+		// Add the given ranges to those the formula at ref reads
+		private void read(long ref, long[] refRanges) {
+			long[] recorded = ranges.get(ref);
+			for (int i = 0; i < refRanges.length; i += 2) {
+				if (holds(recorded, refRanges[i], refRanges[i + 1]))
+					continue;
+				long[] grown = new long[recorded == null ? 2 : recorded.length + 2];
+				if (recorded != null)
+					System.arraycopy(recorded, 0, grown, 0, recorded.length);
+				grown[grown.length - 2] = refRanges[i];
+				grown[grown.length - 1] = refRanges[i + 1];
+				recorded = grown;
+				for (long column = CellRef.column(refRanges[i]); column <= CellRef.column(refRanges[i + 1]); column++)
+					setOf(readers, column).add(ref);
+			}
+			if (recorded != null)
+				ranges.put(ref, recorded);
+		}
+
+		// Drop every range the formula at ref reads
+		private void forget(long ref) {
+			long[] recorded = ranges.remove(ref);
+			for (int i = 0; recorded != null && i < recorded.length; i += 2) {
+				for (long column = CellRef.column(recorded[i]); column <= CellRef.column(recorded[i + 1]); column++) {
+					LongSet columnReaders = readers.get(column);
+					if (columnReaders != null && columnReaders.remove(ref) && columnReaders.isEmpty())
+						readers.remove(column);
+				}
+			}
+		}
+
+		// Whether one of the ranges, as from, to pairs, holds ref
+		private static boolean holds(long[] pairs, long ref) {
+			return holds(pairs, ref, ref);
+		}
+
+		// Whether one of the ranges, as from, to pairs, holds from..to
+		private static boolean holds(long[] pairs, long from, long to) {
+			for (int i = 0; pairs != null && i < pairs.length; i += 2) {
+				if (CellRef.column(pairs[i]) <= CellRef.column(from) && CellRef.column(to) <= CellRef.column(pairs[i + 1])
+					&& CellRef.row(pairs[i]) <= CellRef.row(from) && CellRef.row(to) <= CellRef.row(pairs[i + 1]))
+					return true;
+			}
+			return false;
+		}
+
+		private static LongSet setOf(LongObjectMap<LongSet> sets, long key) {
+			LongSet set = sets.get(key);
+			if (set == null) {
+				set = new LongSet();
+				sets.put(key, set);
+			}
+			return set;
+		}
+	}
+}
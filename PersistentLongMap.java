@@ -0,0 +1,231 @@
+// An immutable map from long keys to objects. put(..) and remove(..)
+// return a new map and leave this one unchanged, sharing all but the
+// path to the changed entry, so keeping many versions of a large map
+// is cheap. Being immutable, a map may be read by any number of
+// threads without locking once it has been safely published.
+//
+// The map is a hash array mapped trie: each node covers 5 bits of
+// the key's hash (LongSet.hash(..)) and holds a 32-bit bitmap of the
+// children present followed by only those children, each either an
+// entry or a deeper node. Keys whose 32-bit hashes are equal end up in
+// a collision node below the last level, searched linearly.
+//
+// Entries may be iterated with forEach(..):
+//
+// map.forEach(new PersistentLongMap.Visitor<V>() {
+//     public void visit(long key, V value) { ... }
+// });
+public final class PersistentLongMap<V> {
+	static final int BITS = 5;
+	// Nodes at this shift or deeper are collision nodes
+	static final int COLLISION_SHIFT = 35;
+
+	private static final PersistentLongMap<Object> EMPTY =
+		new PersistentLongMap<Object>(new Node(0, new Object[0]), 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentLongMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	// Return the empty map
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentLongMap<V> empty() {
+		return (PersistentLongMap<V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) != null;
+	}
+
+	// Return the value for key, or null if it is absent.
+	//
+	// Target Complexity: O(log32 N)
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Entry entry = find(key);
+		return entry == null ? null : (V) entry.value;
+	}
+
+	// Return a map which also maps key to value, replacing any previous
+	// value of key.
+	//
+	// Target Complexity: O(log32 N)
+	public PersistentLongMap<V> put(long key, V value) {
+		int grown = containsKey(key) ? 0 : 1;
+		Node newRoot = put(root, new Entry(key, LongSet.hash(key), value), 0);
+		return new PersistentLongMap<V>(newRoot, size + grown);
+	}
+
+	// Return a map without key, or this map if key is absent.
+	//
+	// Target Complexity: O(log32 N)
+	public PersistentLongMap<V> remove(long key) {
+		if (!containsKey(key))
+			return this;
+		return new PersistentLongMap<V>(remove(root, key, LongSet.hash(key), 0), size - 1);
+	}
+
+	// Receives the entries of a map from forEach(..)
+	public interface Visitor<V> {
+		void visit(long key, V value);
+	}
+
+	// Pass every entry of the map to the visitor, in no particular
+	// order.
+	//
+	// Target Complexity: O(N)
+	public void forEach(Visitor<? super V> visitor) {
+		forEach(root, visitor);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void forEach(Node node, Visitor<? super V> visitor) {
+		for (Object child : node.children) {
+			if (child instanceof Entry) {
+				Entry entry = (Entry) child;
+				visitor.visit(entry.key, (V) entry.value);
+			} else {
+				forEach((Node) child, visitor);
+			}
+		}
+	}
+
+	private Entry find(long key) {
+		int hash = LongSet.hash(key);
+		Node node = root;
+		for (int shift = 0; ; shift += BITS) {
+			if (shift >= COLLISION_SHIFT) {
+				for (Object child : node.children) {
+					if (((Entry) child).key == key)
+						return (Entry) child;
+				}
+				return null;
+			}
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((node.bitmap & bit) == 0)
+				return null;
+			Object child = node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+			if (child instanceof Entry)
+				return ((Entry) child).key == key ? (Entry) child : null;
+			node = (Node) child;
+		}
+	}
+
+	// Return a copy of node with the entry added or replaced
+	private static Node put(Node node, Entry entry, int shift) {
+		if (shift >= COLLISION_SHIFT) {
+			Object[] children = node.children;
+			for (int i = 0; i < children.length; i++) {
+				if (((Entry) children[i]).key == entry.key)
+					return new Node(0, replace(children, i, entry));
+			}
+			return new Node(0, insert(children, children.length, entry));
+		}
+		int bit = 1 << ((entry.hash >>> shift) & 31);
+		int index = Integer.bitCount(node.bitmap & (bit - 1));
+		if ((node.bitmap & bit) == 0)
+			return new Node(node.bitmap | bit, insert(node.children, index, entry));
+		Object child = node.children[index];
+		Object replacement;
+		if (child instanceof Entry) {
+			Entry existing = (Entry) child;
+			replacement = existing.key == entry.key ? entry : join(existing, entry, shift + BITS);
+		} else {
+			replacement = put((Node) child, entry, shift + BITS);
+		}
+		return new Node(node.bitmap, replace(node.children, index, replacement));
+	}
+
+	// Return a node at the given shift holding two entries with
+	// different keys
+	private static Node join(Entry a, Entry b, int shift) {
+		if (shift >= COLLISION_SHIFT)
+			return new Node(0, new Object[] { a, b });
+		int indexA = (a.hash >>> shift) & 31;
+		int indexB = (b.hash >>> shift) & 31;
+		if (indexA == indexB)
+			return new Node(1 << indexA, new Object[] { join(a, b, shift + BITS) });
+		return new Node((1 << indexA) | (1 << indexB),
+						indexA < indexB ? new Object[] { a, b } : new Object[] { b, a });
+	}
+
+	// Return a copy of node without key, which must be present. A node
+	// left holding a single entry is replaced by that entry in its
+	// parent.
+	private static Node remove(Node node, long key, int hash, int shift) {
+		if (shift >= COLLISION_SHIFT) {
+			Object[] children = node.children;
+			for (int i = 0; i < children.length; i++) {
+				if (((Entry) children[i]).key == key)
+					return new Node(0, delete(children, i));
+			}
+			return node;
+		}
+		int bit = 1 << ((hash >>> shift) & 31);
+		int index = Integer.bitCount(node.bitmap & (bit - 1));
+		Object child = node.children[index];
+		if (child instanceof Entry)
+			return new Node(node.bitmap & ~bit, delete(node.children, index));
+		Node smaller = remove((Node) child, key, hash, shift + BITS);
+		if (smaller.children.length == 1 && smaller.children[0] instanceof Entry)
+			return new Node(node.bitmap, replace(node.children, index, smaller.children[0]));
+		return new Node(node.bitmap, replace(node.children, index, smaller));
+	}
+
+	private static Object[] insert(Object[] array, int index, Object value) {
+		Object[] copy = new Object[array.length + 1];
+		System.arraycopy(array, 0, copy, 0, index);
+		copy[index] = value;
+		System.arraycopy(array, index, copy, index + 1, array.length - index);
+		return copy;
+	}
+
+	private static Object[] replace(Object[] array, int index, Object value) {
+		Object[] copy = array.clone();
+		copy[index] = value;
+		return copy;
+	}
+
+	private static Object[] delete(Object[] array, int index) {
+		Object[] copy = new Object[array.length - 1];
+		System.arraycopy(array, 0, copy, 0, index);
+		System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+		return copy;
+	}
+
+	private static final class Node {
+		// Which of the 32 possible children are present; unused in
+		// collision nodes
+		final int bitmap;
+		final Object[] children;
+
+		Node(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+	}
+
+	private static final class Entry {
+		final long key;
+		final int hash;
+		final Object value;
+
+		Entry(long key, int hash, Object value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+// Hand-written Pratt parser for the formula grammar, used by
+// FNode.parseFormulaString() as a fast path in front of ANTLR. It
+// builds exactly the trees FNode.FormulaVisitorImpl builds:
+//
+//   formula : '=' sum
+//   sum     : sum ('+' | '-') product | product     left associative
+//   product : product ('*' | '/') negate | negate   left associative
+//   negate  : '-' negate | atom
+//   atom    : NUMBER | CELLID | AGGREGATE '(' range ')' | '(' sum ')'
+//   range   : CELLID | CELLID ':' CELLID
+//
+// with NUMBER as digits optionally followed by '.' and digits, CELLID
+// as capital letters followed by digits, AGGREGATE one of SUM, MIN,
+// MAX, COUNT and AVERAGE, and whitespace between tokens ignored.
+// Negation binds tighter than every binary operator, so "-2*3" is
+// (-2)*3 and "2*-3" is 2*(-3). An aggregate becomes a node of its
+// TokenType whose left child is a Range node holding "A1:B10" (or
+// "A1:A1" for a single cell).
+//
+// The parser accepts only input it is certain about and returns null
+// for anything else instead of throwing. The caller then reparses with
+// ANTLR, so invalid formulas fail with exactly the same exception as
+// before and nothing the grammar accepts is ever rejected. Aggregates
+// are not part of the ANTLR grammar, so they are only accepted here;
+// a malformed one is rejected by ANTLR like any other syntax error.
+public class PrattFormulaParser {
+  // Binding powers of the binary operators
+  private static final int SUM_POWER = 1;
+  private static final int PRODUCT_POWER = 2;
+
+  private final String text;
+  private int pos;
+
+  private PrattFormulaParser(String text){
+    this.text = text;
+  }
+
+  // Parse the formula, returning its tree or null if the formula is
+  // not certainly valid.
+  public static FNode parse(String formulaStr){
+    PrattFormulaParser parser = new PrattFormulaParser(formulaStr);
+    if(parser.peek() != '='){
+      return null;
+    }
+    parser.pos++;
+    FNode root = parser.expression(SUM_POWER);
+    if(root == null || parser.peek() != 0){
+      return null;
+    }
+    return root;
+  }
+
+  // Parse operators binding at least as tightly as minPower
+  private FNode expression(int minPower){
+    FNode left = negate();
+    while(left != null){
+      char op = peek();
+      int power = bindingPower(op);
+      if(power < minPower){
+        break;
+      }
+      pos++;
+      // Left associative: the right operand binds tighter
+      FNode right = expression(power + 1);
+      if(right == null){
+        return null;
+      }
+      left = new FNode(operatorType(op), left, right);
+    }
+    return left;
+  }
+
+  private FNode negate(){
+    if(peek() == '-'){
+      pos++;
+      FNode operand = negate();
+      return operand == null ? null : new FNode(TokenType.Negate, operand, null);
+    }
+    return atom();
+  }
+
+  private FNode atom(){
+    char c = peek();
+    int start = pos;
+    if(c == '('){
+      pos++;
+      FNode inner = expression(SUM_POWER);
+      if(inner == null || peek() != ')'){
+        return null;
+      }
+      pos++;
+      return inner;
+    }
+    if(c >= 'A' && c <= 'Z'){
+      while(pos < text.length() && isLetter(text.charAt(pos))){
+        pos++;
+      }
+      TokenType aggregate = TokenType.aggregate(text.substring(start, pos));
+      if(aggregate != null){
+        int end = pos;
+        if(peek() == '('){
+          return aggregate(aggregate);
+        }
+        pos = end;
+      }
+      if(!skipDigits()){
+        return null;
+      }
+      return new FNode(TokenType.CellID, text.substring(start, pos), null, null);
+    }
+    if(c >= '0' && c <= '9'){
+      skipDigits();
+      if(pos < text.length() && text.charAt(pos) == '.'){
+        pos++;
+        if(!skipDigits()){
+          return null;
+        }
+      }
+      return new FNode(TokenType.Number, text.substring(start, pos), null, null);
+    }
+    return null;
+  }
+
+  // Parse the parenthesized range of an aggregate, starting at the '('
+  private FNode aggregate(TokenType type){
+    pos++;
+    peek();
+    String first = cellID();
+    if(first == null){
+      return null;
+    }
+    String last = first;
+    if(peek() == ':'){
+      pos++;
+      peek();
+      last = cellID();
+      if(last == null){
+        return null;
+      }
+    }
+    if(peek() != ')'){
+      return null;
+    }
+    pos++;
+    FNode range = new FNode(TokenType.Range, first + ":" + last, null, null);
+    return new FNode(type, range, null);
+  }
+
+  // Read a cell ID at the current position, or return null if there
+  // is none
+  private String cellID(){
+    int start = pos;
+    while(pos < text.length() && isLetter(text.charAt(pos))){
+      pos++;
+    }
+    if(pos == start || !skipDigits()){
+      return null;
+    }
+    return text.substring(start, pos);
+  }
+
+  // Skip whitespace and return the next character, or 0 at the end
+  private char peek(){
+    while(pos < text.length() && isWhitespace(text.charAt(pos))){
+      pos++;
+    }
+    return pos < text.length() ? text.charAt(pos) : 0;
+  }
+
+  // Advance over digits, returning false if there were none
+  private boolean skipDigits(){
+    int start = pos;
+    while(pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9'){
+      pos++;
+    }
+    return pos > start;
+  }
+
+  private static boolean isLetter(char c){
+    return c >= 'A' && c <= 'Z';
+  }
+
+  private static boolean isWhitespace(char c){
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private static int bindingPower(char op){
+    switch(op){
+      case '+':
+      case '-':
+        return SUM_POWER;
+      case '*':
+      case '/':
+        return PRODUCT_POWER;
+      default:
+        return 0;
+    }
+  }
+
+  private static TokenType operatorType(char op){
+    switch(op){
+      case '+':
+        return TokenType.Plus;
+      case '-':
+        return TokenType.Minus;
+      case '*':
+        return TokenType.Multiply;
+      default:
+        return TokenType.Divide;
+    }
+  }
+}
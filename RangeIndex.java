@@ -0,0 +1,454 @@
+import java.util.Arrays;
+import java.util.TreeSet;
+
+// Incrementally maintained aggregates over the columns read by range
+// formulas such as "=SUM(A1:A10000)". Each indexed column has a
+// segment tree over its rows whose nodes hold the sum, count, minimum,
+// maximum and number of error cells of an aligned block of rows, so
+// setting one cell updates O(log n) nodes and aggregating any range
+// of a column combines O(log n) of them. Segment trees are used rather
+// than Fenwick trees because minimum and maximum cannot be undone and
+// sums over infinities and NaN cannot be subtracted back out.
+//
+// A range is folded left to right over the maximal aligned power-of-two
+// blocks covering it, each block summed as the sum of its two halves.
+// The same blocks are summed the same way when a column is not
+// indexed and its cells are scanned instead (see scan(..)), so both
+// give bit-identical results; they may differ in the last bits from
+// adding the cells one by one.
+//
+// Cells count as follows: numbers and formulas with a value are
+// counted and added, blank and string cells are skipped, and formulas
+// in error are counted as errors. The Spreadsheet owning the index
+// calls cover(..) for every range its formulas read and update(..)
+// whenever a cell in an indexed column changes.
+//
+// A column's tree is sized by the cells of the column, not by the
+// ranges reading it: it covers every row down to the last cell which
+// counts, and grows by doubling when a cell below that is set. Rows
+// past the tree are known to count for nothing, so a range reaching
+// far below the data, such as A1:A4000000, costs no more than the
+// data does. Columns whose tree would have more than ROWS_PER_CELL
+// rows per cell that counts, or more than MAX_INDEXED_ROWS rows, keep
+// the sorted rows of their cells which count instead, and are scanned
+// skipping the blocks without any, so a few cells far down a column
+// cannot make the index allocate for all the rows above them.
+public class RangeIndex {
+	// A column's tree has MIN_ROWS rows, or more if that is no more
+	// than ROWS_PER_CELL per cell which counts and MAX_INDEXED_ROWS
+	static final int MIN_ROWS = 8;
+	static final int ROWS_PER_CELL = 4;
+	static final int MAX_INDEXED_ROWS = 1 << 20;
+
+	private final LongObjectMap<Cell> cells;
+	// Segment tree of each indexed column, by column number
+	private final LongObjectMap<ColumnTree> columns = new LongObjectMap<ColumnTree>();
+	// Rows of the cells which count in each column too sparse or too
+	// tall to index, which is scanned instead
+	private final LongObjectMap<TreeSet<Integer>> scanned = new LongObjectMap<TreeSet<Integer>>();
+
+	// Construct an empty index over the given cell map, which the index
+	// reads but never modifies
+	RangeIndex(LongObjectMap<Cell> cells) {
+		this.cells = cells;
+	}
+
+	// Running totals of the cells of one or more ranges, folded in by
+	// aggregate(..) or scan(..)
+	static final class Totals {
+		double sum;
+		int count;
+		double min, max;
+		int errors;
+
+		Totals() {
+			reset();
+		}
+
+		void reset() {
+			sum = 0.0;
+			count = 0;
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			errors = 0;
+		}
+
+		// Return the value of the given aggregate over the totals. The
+		// minimum and maximum of a range without numbers are 0 and
+		// their average is NaN.
+		double valueOf(TokenType aggregate) {
+			switch (aggregate) {
+			case Sum:
+				return sum;
+			case Min:
+				return count == 0 ? 0.0 : min;
+			case Max:
+				return count == 0 ? 0.0 : max;
+			case Count:
+				return count;
+			case Average:
+				return sum / count;
+			default:
+				throw new RuntimeException("Not an aggregate: " + aggregate);
+			}
+		}
+	}
+
+	// Return the corners of a range written as "B10:A1", top-left then
+	// bottom-right whichever way round they were written, or null if a
+	// corner cannot be packed.
+	static long[] corners(String range) {
+		int colon = range.indexOf(':');
+		long a = CellRef.tryPack(range.substring(0, colon));
+		long b = CellRef.tryPack(range.substring(colon + 1));
+		if (a == CellRef.INVALID || b == CellRef.INVALID)
+			return null;
+		long from = ((long) Math.min(CellRef.column(a), CellRef.column(b)) << 32)
+			| Math.min(CellRef.row(a), CellRef.row(b));
+		long to = ((long) Math.max(CellRef.column(a), CellRef.column(b)) << 32)
+			| Math.max(CellRef.row(a), CellRef.row(b));
+		return new long[] { from, to };
+	}
+
+	// Make sure every column of the range from..to is indexed, or has
+	// its rows kept if it is too sparse or too tall. Columns added are
+	// sized and filled by two scans of the cell map.
+	//
+	// Target Complexity: O(N + R) when a column is added, O(C) otherwise
+	// N : number of cells in the sheet
+	// R : rows of the trees of the columns added
+	// C : columns of the range
+	void cover(long from, long to) {
+		LongIntMap lastRows = null, counting = null;
+		for (long column = CellRef.column(from); column <= CellRef.column(to); column++) {
+			if (columns.containsKey(column) || scanned.containsKey(column))
+				continue;
+			if (lastRows == null) {
+				lastRows = new LongIntMap();
+				counting = new LongIntMap();
+			}
+			lastRows.put(column, 0);
+			counting.put(column, 0);
+		}
+		if (lastRows == null)
+			return;
+		// Find the last row and the number of cells which count in each
+		// new column
+		for (int i = cells.next(-1); i >= 0; i = cells.next(i)) {
+			long ref = cells.keyAt(i);
+			int slot = lastRows.slot(CellRef.column(ref));
+			if (slot < 0 || !counts(cells.valueAt(i)))
+				continue;
+			lastRows.setValueAt(slot, Math.max(lastRows.valueAt(slot), CellRef.row(ref)));
+			int countSlot = counting.slot(CellRef.column(ref));
+			counting.setValueAt(countSlot, counting.valueAt(countSlot) + 1);
+		}
+		LongObjectMap<ColumnTree> fresh = new LongObjectMap<ColumnTree>();
+		LongObjectMap<TreeSet<Integer>> sparse = new LongObjectMap<TreeSet<Integer>>();
+		for (int i = lastRows.next(-1); i >= 0; i = lastRows.next(i)) {
+			long column = lastRows.keyAt(i);
+			int size = rowsFor(lastRows.valueAt(i));
+			if (indexable(size, counting.get(column)))
+				fresh.put(column, new ColumnTree(size));
+			else
+				sparse.put(column, new TreeSet<Integer>());
+		}
+		for (int i = cells.next(-1); i >= 0; i = cells.next(i)) {
+			long ref = cells.keyAt(i);
+			ColumnTree tree = fresh.get(CellRef.column(ref));
+			TreeSet<Integer> rows = sparse.get(CellRef.column(ref));
+			if (tree != null && CellRef.row(ref) <= tree.size)
+				tree.setLeaf(CellRef.row(ref) - 1, cells.valueAt(i));
+			else if (rows != null && counts(cells.valueAt(i)))
+				rows.add(CellRef.row(ref));
+		}
+		for (int i = sparse.next(-1); i >= 0; i = sparse.next(i))
+			scanned.put(sparse.keyAt(i), sparse.valueAt(i));
+		for (int i = fresh.next(-1); i >= 0; i = fresh.next(i)) {
+			fresh.valueAt(i).build();
+			columns.put(fresh.keyAt(i), fresh.valueAt(i));
+		}
+	}
+
+	// Drop every column from the index
+	void clear() {
+		columns.clear();
+		scanned.clear();
+	}
+
+	// Record the current value of the cell at ref, or null if it was
+	// deleted. A cell which counts below the last row of its column's
+	// tree grows the tree, or if that would make the column too sparse
+	// or too tall, turns the column into one whose rows are kept.
+	//
+	// Target Complexity: O(log R), plus O(R) when the tree grows or is
+	// turned into rows
+	void update(long ref, Cell cell) {
+		long column = CellRef.column(ref);
+		int row = CellRef.row(ref);
+		boolean counted = cell != null && counts(cell);
+		ColumnTree tree = columns.get(column);
+		if (tree == null) {
+			TreeSet<Integer> rows = scanned.get(column);
+			if (rows != null && counted)
+				rows.add(row);
+			else if (rows != null)
+				rows.remove(row);
+			return;
+		}
+		if (row > tree.size) {
+			if (!counted)
+				return;
+			int size = rowsFor(row);
+			if (!indexable(size, tree.cells + 1)) {
+				TreeSet<Integer> rows = tree.countingRows();
+				rows.add(row);
+				columns.remove(column);
+				scanned.put(column, rows);
+				return;
+			}
+			tree = tree.grow(size);
+			columns.put(column, tree);
+		}
+		tree.set(row - 1, cell);
+	}
+
+	// Fold the cells of the range from..to into totals, reading indexed
+	// columns from their trees and scanning the others.
+	//
+	// Target Complexity: O(C log R) for indexed columns, O(K log R) for
+	// those whose rows are kept
+	// K : cells which count in the range
+	void aggregate(long from, long to, Totals totals) {
+		int firstRow = CellRef.row(from), lastRow = CellRef.row(to);
+		for (long column = CellRef.column(from); column <= CellRef.column(to); column++) {
+			ColumnTree tree = columns.get(column);
+			TreeSet<Integer> rows = tree == null ? scanned.get(column) : null;
+			fold(tree, rows, cells, column, firstRow - 1, lastRow - 1, totals);
+		}
+	}
+
+	// Whether a cell changes the totals of a range holding it: it has a
+	// number or is in error
+	private static boolean counts(Cell cell) {
+		return cell.hasNumber() || cell.isError();
+	}
+
+	// Rows of a tree reaching the given row: the next power of two, and
+	// at least MIN_ROWS
+	private static int rowsFor(int row) {
+		return row <= MIN_ROWS ? MIN_ROWS : Integer.highestOneBit(row - 1) << 1;
+	}
+
+	// Whether a column of the given cells which count may have a tree
+	// of the given rows
+	private static boolean indexable(int size, int cellsCounting) {
+		return size <= MAX_INDEXED_ROWS && size <= Math.max(MIN_ROWS, (long) ROWS_PER_CELL * cellsCounting);
+	}
+
+	// Fold the cells of the range from..to into totals by reading every
+	// cell of the range from the given map, without any index.
+	//
+	// Target Complexity: O(C * R)
+	static void scan(LongObjectMap<Cell> cellMap, long from, long to, Totals totals) {
+		int firstRow = CellRef.row(from), lastRow = CellRef.row(to);
+		for (long column = CellRef.column(from); column <= CellRef.column(to); column++)
+			fold(null, null, cellMap, column, firstRow - 1, lastRow - 1, totals);
+	}
+
+	// Fold the aligned blocks covering rows first..last (0-based) of a
+	// column into totals from left to right. Blocks are found as in a
+	// bottom-up segment tree query: walking up from the two ends, a left
+	// end on a right child and a right end on a left child each take
+	// that node as a block. Which blocks are taken does not depend on
+	// the size of the tree, so a tree of any size and a scan agree.
+	// Blocks are read from the tree if one is given, otherwise computed
+	// from the cell map, skipping those holding none of the given rows
+	// if the rows which count are known.
+	private static void fold(ColumnTree tree, TreeSet<Integer> rows, LongObjectMap<Cell> cellMap, long column,
+							 int first, int last, Totals totals) {
+		long size = Long.highestOneBit(last) << 1;
+		if (size == 0)
+			size = 1;
+		long left = first + size, right = last + size + 1;
+		// Blocks found from the right end, each as index << 6 | level
+		long[] pending = new long[64];
+		int count = 0;
+		for (int level = 0; left < right; level++, left >>= 1, right >>= 1) {
+			if ((left & 1) != 0) {
+				addBlock(tree, rows, cellMap, column, left - (size >> level), level, totals);
+				left++;
+			}
+			if ((right & 1) != 0) {
+				right--;
+				pending[count++] = ((right - (size >> level)) << 6) | level;
+			}
+		}
+		while (count > 0) {
+			long block = pending[--count];
+			addBlock(tree, rows, cellMap, column, block >>> 6, (int) (block & 63), totals);
+		}
+	}
+
+	// Add the block of 2^level rows starting at row index << level.
+	// Rows past the tree are added as 0.0, as a scan adds them, which
+	// only matters to a sum of -0.0.
+	private static void addBlock(ColumnTree tree, TreeSet<Integer> rows, LongObjectMap<Cell> cellMap,
+								 long column, long index, int level, Totals totals) {
+		if (tree == null) {
+			totals.sum += scanBlock(cellMap, column, index << level, level, rows, totals);
+		} else if (index << level >= tree.size) {
+			totals.sum += 0.0;
+		} else if (1L << level > tree.size) {
+			tree.addNode(1, totals);
+			totals.sum += 0.0;
+		} else {
+			tree.addNode((int) ((tree.size >> level) + index), totals);
+		}
+	}
+
+	// Return the sum of a block of rows computed exactly as a ColumnTree
+	// would, adding its count, extremes and errors to totals directly.
+	// A block holding none of the given rows sums to 0.0, as its cells
+	// would; rows is null if they are not known.
+	private static double scanBlock(LongObjectMap<Cell> cellMap, long column, long start, int level,
+									TreeSet<Integer> rows, Totals totals) {
+		if (rows != null) {
+			Integer next = rows.ceiling((int) Math.min(start + 1, Integer.MAX_VALUE));
+			if (next == null || next > start + (1L << level))
+				return 0.0;
+		}
+		if (level > 0) {
+			long half = 1L << (level - 1);
+			return scanBlock(cellMap, column, start, level - 1, rows, totals)
+				+ scanBlock(cellMap, column, start + half, level - 1, rows, totals);
+		}
+		long ref = (column << 32) | (start + 1);
+		if (cellMap instanceof CellGrid) {
+			// Numbers kept in a chunk are read without a Cell
+			CellGrid.Chunk chunk = ((CellGrid) cellMap).chunkOf(ref);
+			int offset = CellGrid.offset(ref);
+			if (chunk != null && chunk.isNumber(offset))
+				return addNumber(chunk.values[offset], totals);
+		}
+		Cell cell = cellMap.get(ref);
+		if (cell == null)
+			return 0.0;
+		if (!cell.hasNumber()) {
+			if (cell.isError())
+				totals.errors++;
+			return 0.0;
+		}
+		return addNumber(cell.doubleValue(), totals);
+	}
+
+	// Count a number of a scanned block, returning it to be summed
+	private static double addNumber(double value, Totals totals) {
+		totals.count++;
+		totals.min = Math.min(totals.min, value);
+		totals.max = Math.max(totals.max, value);
+		return value;
+	}
+
+	// Segment tree over the rows of one column. Node 1 is the root, the
+	// children of node n are 2n and 2n + 1, and row r (0-based) is leaf
+	// size + r.
+	static final class ColumnTree {
+		final int size;
+		final double[] sum, min, max;
+		final int[] count, errors;
+		// Leaves with a number or an error
+		int cells;
+
+		ColumnTree(int size) {
+			this.size = size;
+			sum = new double[2 * size];
+			min = new double[2 * size];
+			max = new double[2 * size];
+			count = new int[2 * size];
+			errors = new int[2 * size];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		// Set a leaf without updating the nodes above it; used before
+		// build()
+		void setLeaf(int row, Cell cell) {
+			int node = size + row;
+			cells -= count[node] + errors[node];
+			sum[node] = 0.0;
+			count[node] = 0;
+			min[node] = Double.POSITIVE_INFINITY;
+			max[node] = Double.NEGATIVE_INFINITY;
+			errors[node] = 0;
+			if (cell == null)
+				return;
+			if (!cell.hasNumber()) {
+				if (cell.isError()) {
+					errors[node] = 1;
+					cells++;
+				}
+				return;
+			}
+			double value = cell.doubleValue();
+			sum[node] = value;
+			count[node] = 1;
+			min[node] = value;
+			max[node] = value;
+			cells++;
+		}
+
+		// Set a leaf and update every node above it
+		void set(int row, Cell cell) {
+			setLeaf(row, cell);
+			for (int node = (size + row) >> 1; node > 0; node >>= 1)
+				combine(node);
+		}
+
+		// Compute every inner node from the leaves
+		void build() {
+			for (int node = size - 1; node > 0; node--)
+				combine(node);
+		}
+
+		// Return the rows of the leaves with a number or an error
+		TreeSet<Integer> countingRows() {
+			TreeSet<Integer> rows = new TreeSet<Integer>();
+			for (int row = 0; row < size; row++) {
+				if (count[size + row] + errors[size + row] > 0)
+					rows.add(row + 1);
+			}
+			return rows;
+		}
+
+		// Return a tree of the given larger size holding the same leaves
+		ColumnTree grow(int newSize) {
+			ColumnTree tree = new ColumnTree(newSize);
+			System.arraycopy(sum, size, tree.sum, newSize, size);
+			System.arraycopy(min, size, tree.min, newSize, size);
+			System.arraycopy(max, size, tree.max, newSize, size);
+			System.arraycopy(count, size, tree.count, newSize, size);
+			System.arraycopy(errors, size, tree.errors, newSize, size);
+			tree.cells = cells;
+			tree.build();
+			return tree;
+		}
+
+		private void combine(int node) {
+			int l = 2 * node, r = l + 1;
+			sum[node] = sum[l] + sum[r];
+			count[node] = count[l] + count[r];
+			min[node] = Math.min(min[l], min[r]);
+			max[node] = Math.max(max[l], max[r]);
+			errors[node] = errors[l] + errors[r];
+		}
+
+		void addNode(int node, Totals totals) {
+			totals.sum += sum[node];
+			totals.count += count[node];
+			totals.min = Math.min(totals.min, min[node]);
+			totals.max = Math.max(totals.max, max[node]);
+			totals.errors += errors[node];
+		}
+	}
+}
@@ -0,0 +1,235 @@
+// Counters and histograms describing the edits made to a Spreadsheet,
+// recorded while metrics are enabled (see
+// Spreadsheet.setMetricsEnabled(..)). Spreadsheet.metrics() returns a
+// copy, so a snapshot does not change as the sheet is edited further.
+//
+// An edit is one call of setCell(..), deleteCell(..) or applyBatch(..).
+// For each edit the metrics record its latency, the time spent making
+// its formulas (parsing and compiling them), the time spent checking
+// its new links for cycles and the DAG nodes that check visited, the
+// formulas it evaluated and skipped, the formulas it left in error,
+// and the width and depth of its propagation: the cells in its
+// recalculation order and the dependency levels they form. The same
+// figures are committed as an EditEvent when a flight recording asks
+// for it.
+//
+// Histograms count values in power-of-two buckets, so percentiles are
+// upper bounds within a factor of two.
+public class RecalcMetrics {
+	private long edits;
+	private long cellsEvaluated;
+	private long cellsSkipped;
+	private long errorCells;
+	private long formulasParsed;
+	private long cycleChecks;
+	private long cyclesFound;
+	private long nodesVisited;
+	private final Histogram editNanos;
+	private final Histogram parseNanos;
+	private final Histogram cycleCheckNanos;
+	private final Histogram evaluatedPerEdit;
+	private final Histogram propagationWidth;
+	private final Histogram propagationDepth;
+
+	// Construct empty metrics
+	RecalcMetrics() {
+		editNanos = new Histogram();
+		parseNanos = new Histogram();
+		cycleCheckNanos = new Histogram();
+		evaluatedPerEdit = new Histogram();
+		propagationWidth = new Histogram();
+		propagationDepth = new Histogram();
+	}
+
+	private RecalcMetrics(RecalcMetrics other) {
+		edits = other.edits;
+		cellsEvaluated = other.cellsEvaluated;
+		cellsSkipped = other.cellsSkipped;
+		errorCells = other.errorCells;
+		formulasParsed = other.formulasParsed;
+		cycleChecks = other.cycleChecks;
+		cyclesFound = other.cyclesFound;
+		nodesVisited = other.nodesVisited;
+		editNanos = other.editNanos.copy();
+		parseNanos = other.parseNanos.copy();
+		cycleCheckNanos = other.cycleCheckNanos.copy();
+		evaluatedPerEdit = other.evaluatedPerEdit.copy();
+		propagationWidth = other.propagationWidth.copy();
+		propagationDepth = other.propagationDepth.copy();
+	}
+
+	// Add a finished edit which took the given time. Synchronized with
+	// copy() so a snapshot may be taken from another thread.
+	synchronized void record(EditEvent edit, long nanos) {
+		edits++;
+		editNanos.record(nanos);
+		cellsEvaluated += edit.cellsEvaluated;
+		cellsSkipped += edit.cellsSkipped;
+		evaluatedPerEdit.record(edit.cellsEvaluated);
+		errorCells += edit.errorCells;
+		if (edit.formulasParsed > 0) {
+			formulasParsed += edit.formulasParsed;
+			parseNanos.record(edit.parseNanos);
+		}
+		if (edit.cycleChecked) {
+			cycleChecks++;
+			cycleCheckNanos.record(edit.cycleCheckNanos);
+			nodesVisited += edit.nodesVisited;
+			if (edit.cycleFound)
+				cyclesFound++;
+		}
+		propagationWidth.record(edit.propagationWidth);
+		propagationDepth.record(edit.propagationDepth);
+	}
+
+	// Return a copy of the metrics recorded so far
+	synchronized RecalcMetrics copy() {
+		return new RecalcMetrics(this);
+	}
+
+	// Number of edits recorded
+	public long edits() {
+		return edits;
+	}
+
+	// Formulas evaluated by recalculation, not counting edited cells
+	public long cellsEvaluated() {
+		return cellsEvaluated;
+	}
+
+	// Formulas downstream of edits skipped as none of their inputs
+	// changed value
+	public long cellsSkipped() {
+		return cellsSkipped;
+	}
+
+	// Formulas evaluated into an error, edited ones included
+	public long errorCells() {
+		return errorCells;
+	}
+
+	// Formulas made from the contents of edits
+	public long formulasParsed() {
+		return formulasParsed;
+	}
+
+	// Edits whose links were checked for cycles, and those rejected
+	public long cycleChecks() {
+		return cycleChecks;
+	}
+
+	public long cyclesFound() {
+		return cyclesFound;
+	}
+
+	// DAG nodes visited while repairing the topological order
+	public long nodesVisited() {
+		return nodesVisited;
+	}
+
+	// Latency of whole edits, in nanoseconds
+	public Histogram editLatency() {
+		return editNanos;
+	}
+
+	// Time making the formulas of an edit, in nanoseconds, for edits
+	// with formulas
+	public Histogram parseLatency() {
+		return parseNanos;
+	}
+
+	// Time checking the links of an edit for cycles, in nanoseconds
+	public Histogram cycleCheckLatency() {
+		return cycleCheckNanos;
+	}
+
+	// Formulas evaluated per edit
+	public Histogram evaluatedPerEdit() {
+		return evaluatedPerEdit;
+	}
+
+	// Cells in the recalculation order of each edit
+	public Histogram propagationWidth() {
+		return propagationWidth;
+	}
+
+	// Dependency levels in the recalculation order of each edit
+	public Histogram propagationDepth() {
+		return propagationDepth;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("edits: ").append(edits).append('\n');
+		sb.append("cells evaluated: ").append(cellsEvaluated)
+			.append(", skipped: ").append(cellsSkipped)
+			.append(", in error: ").append(errorCells).append('\n');
+		sb.append("formulas parsed: ").append(formulasParsed).append('\n');
+		sb.append("cycle checks: ").append(cycleChecks)
+			.append(", cycles found: ").append(cyclesFound)
+			.append(", nodes visited: ").append(nodesVisited).append('\n');
+		sb.append("edit ns: ").append(editNanos).append('\n');
+		sb.append("parse ns: ").append(parseNanos).append('\n');
+		sb.append("cycle check ns: ").append(cycleCheckNanos).append('\n');
+		sb.append("evaluated per edit: ").append(evaluatedPerEdit).append('\n');
+		sb.append("propagation width: ").append(propagationWidth).append('\n');
+		sb.append("propagation depth: ").append(propagationDepth).append('\n');
+		return sb.toString();
+	}
+
+	// Counts of non-negative values in power-of-two buckets: bucket 0
+	// holds 0, and bucket b holds values from 2^(b-1) to 2^b - 1
+	public static final class Histogram {
+		private final long[] buckets = new long[65];
+		private long count;
+		private long sum;
+		private long max;
+
+		void record(long value) {
+			buckets[64 - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		Histogram copy() {
+			Histogram copy = new Histogram();
+			System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+			copy.count = count;
+			copy.sum = sum;
+			copy.max = max;
+			return copy;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public double mean() {
+			return count == 0 ? 0.0 : (double) sum / count;
+		}
+
+		public long max() {
+			return max;
+		}
+
+		// Return an upper bound of the given quantile, between 0 and 1,
+		// of the values recorded: the top of the bucket reaching it,
+		// but no more than the largest value. 0 if nothing was recorded.
+		public long percentile(double quantile) {
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b];
+				if (seen >= rank && seen > 0)
+					return b == 0 ? 0 : Math.min(max, b == 64 ? Long.MAX_VALUE : (1L << b) - 1);
+			}
+			return 0;
+		}
+
+		public String toString() {
+			return "count " + count + ", mean " + FixedFormat.oneDecimal(mean()) + ", p50 <= " + percentile(0.5)
+				+ ", p99 <= " + percentile(0.99) + ", max " + max;
+		}
+	}
+}
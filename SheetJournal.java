@@ -0,0 +1,368 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Durable spreadsheet backed by a directory holding a binary snapshot
+// (see SheetSnapshot) and an append-only journal of the edits made
+// since that snapshot. Edits go through setCell(..) and deleteCell(..),
+// which apply the edit and append a record to an in-memory batch. The
+// batch is written and fsynced as a group, either by a background
+// thread every groupCommitMillis or by sync(), so many edits share one
+// fsync. Another background task periodically writes a new snapshot
+// and empties the journal.
+//
+// Each journal record is
+//
+//   int    payload length, int CRC32 of the payload
+//   byte   SET or DELETE, long packed cell reference (see CellRef)
+//   bytes  UTF-8 contents, for SET only
+//
+// On open, the sheet is rebuilt from the latest snapshot and the
+// journal is replayed up to the first incomplete or corrupt record,
+// which is where a crash may have cut it off. Records only assign
+// contents, so the tail reduces to the last edit of each cell and is
+// applied with a single Spreadsheet.applyBatch(..) recalculation.
+// Replaying records already included in the snapshot is harmless.
+//
+// A failed journal write or fsync leaves the end of the journal
+// unknown, so the batch is not retried. The journal is marked failed
+// instead: sync() and later edits throw, including after a failure on
+// the background thread. Reopening the directory recovers every edit
+// made durable before the failure.
+//
+// Edits and snapshot captures are serialized on this object. Reads through
+// sheet() must come from the thread making edits.
+public class SheetJournal implements Closeable {
+	static final String SNAPSHOT_FILE = "sheet.snapshot";
+	static final String JOURNAL_FILE = "sheet.journal";
+	
+	static final byte SET = 1;
+	static final byte DELETE = 2;
+	
+	static final int HEADER_SIZE = 8;
+	
+	private final Path directory;
+	private final Spreadsheet sheet;
+	private final FileChannel journal;
+	private final ScheduledExecutorService background;
+	// Guards writes to the journal channel; taken before this object's
+	// monitor when both are needed
+	private final Object flushLock = new Object();
+	
+	// Records appended but not yet written, guarded by this
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+	private long appended;
+	private volatile long durable;
+	private long journaledSinceSnapshot;
+	// First failure of a journal write, fsync or background snapshot,
+	// set under this
+	private volatile IOException failure;
+
+	private SheetJournal(Path directory, Spreadsheet sheet, FileChannel journal,
+						 long groupCommitMillis, long snapshotMillis) {
+		this.directory = directory;
+		this.sheet = sheet;
+		this.journal = journal;
+		this.background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "sheet-journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		background.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					// Recorded by flush(); reported by the next edit or sync()
+				}
+			}
+		}, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+		background.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					snapshotIfChanged();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Open the journaled sheet in the given directory, creating it if
+	// needed and recovering the sheet from its snapshot and journal.
+	public static SheetJournal open(Path directory, long groupCommitMillis, long snapshotMillis)
+		throws IOException {
+		Files.createDirectories(directory);
+		Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+		Spreadsheet sheet = Files.exists(snapshotFile)
+			? Spreadsheet.loadSnapshot(snapshotFile) : new Spreadsheet();
+		FileChannel journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+											   StandardOpenOption.CREATE,
+											   StandardOpenOption.READ,
+											   StandardOpenOption.WRITE);
+		long validEnd = replay(journal, sheet);
+		// Drop a torn tail so new records follow the last good one
+		journal.truncate(validEnd);
+		journal.position(validEnd);
+		return new SheetJournal(directory, sheet, journal, groupCommitMillis, snapshotMillis);
+	}
+
+	// The journaled sheet. Change it only through this journal.
+	public Spreadsheet sheet() {
+		return sheet;
+	}
+
+	// Set the given cell and journal the edit. If the sheet rejects the
+	// edit, nothing is journaled. Throws if the journal has failed.
+	public synchronized void setCell(String id, String contents) {
+		checkUsable();
+		if (contents == null || contents.trim().equals("")) {
+			deleteCell(id);
+			return;
+		}
+		sheet.setCell(id, contents);
+		append(SET, CellRef.pack(id), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Delete the given cell and journal the edit. Throws if the journal
+	// has failed.
+	public synchronized void deleteCell(String id) {
+		checkUsable();
+		sheet.deleteCell(id);
+		append(DELETE, CellRef.pack(id), new byte[0]);
+	}
+
+	// Block until every edit made so far is on disk. Concurrent callers
+	// are satisfied by a single write and fsync. Throws if the edits
+	// could not be made durable.
+	public void sync() throws IOException {
+		long target;
+		synchronized (this) {
+			target = appended;
+		}
+		if (durable < target)
+			flush();
+		if (durable < target)
+			throw new IOException("Journal in " + directory + " failed before edit " + target
+								  + " was written", failure);
+	}
+
+	// Write a new snapshot now and empty the journal. The sheet is
+	// captured in memory under this object's monitor and written to
+	// disk outside it, so edits continue during the write. Flushes wait
+	// for flushLock, so the journal holds exactly the edits the
+	// snapshot does until it is emptied.
+	public void snapshot() throws IOException {
+		synchronized (flushLock) {
+			byte[] captured;
+			long edits;
+			synchronized (this) {
+				checkNotFailed();
+				writePending();
+				captured = SheetSnapshot.capture(sheet);
+				edits = journaledSinceSnapshot;
+			}
+			Path file = directory.resolve(SNAPSHOT_FILE);
+			Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+			SheetSnapshot.write(captured, temporary);
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+			// The rename is durable only once the directory is
+			syncDirectory();
+			// A crash before this truncation only replays edits the
+			// snapshot already holds
+			try {
+				journal.truncate(0);
+				journal.position(0);
+				journal.force(true);
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+			synchronized (this) {
+				journaledSinceSnapshot -= edits;
+			}
+		}
+	}
+
+	// Stop the background tasks, then write out all edits. The journal
+	// is closed even if that fails.
+	public void close() throws IOException {
+		background.shutdown();
+		try {
+			background.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			flush();
+		} finally {
+			journal.close();
+		}
+	}
+
+	private void snapshotIfChanged() throws IOException {
+		synchronized (this) {
+			if (journaledSinceSnapshot == 0)
+				return;
+		}
+		snapshot();
+	}
+
+	// Append a record to the pending batch. Called holding this.
+	private void append(byte op, long ref, byte[] contents) {
+		int payload = 1 + 8 + contents.length;
+		if (pending.remaining() < HEADER_SIZE + payload) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+															 pending.position() + HEADER_SIZE + payload));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(op);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			crc.update((int) (ref >>> shift));
+		crc.update(contents);
+		pending.putInt(payload);
+		pending.putInt((int) crc.getValue());
+		pending.put(op);
+		pending.putLong(ref);
+		pending.put(contents);
+		appended++;
+		journaledSinceSnapshot++;
+	}
+
+	// Write the pending batch and fsync it. The batch is swapped out
+	// under this object's monitor so edits continue during the write.
+	// A failure marks the journal failed.
+	private void flush() throws IOException {
+		synchronized (flushLock) {
+			ByteBuffer batch;
+			long upTo;
+			synchronized (this) {
+				checkNotFailed();
+				if (pending.position() == 0)
+					return;
+				batch = pending;
+				upTo = appended;
+				pending = ByteBuffer.allocate(batch.capacity());
+			}
+			try {
+				batch.flip();
+				while (batch.hasRemaining())
+					journal.write(batch);
+				journal.force(false);
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+			durable = upTo;
+		}
+	}
+
+	// Write the pending batch without swapping and fsync it. Called
+	// holding both flushLock and this.
+	private void writePending() throws IOException {
+		try {
+			pending.flip();
+			while (pending.hasRemaining())
+				journal.write(pending);
+			pending.clear();
+			journal.force(false);
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+		durable = appended;
+	}
+
+	// Record the first failure; later ones follow from it
+	private synchronized void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+	}
+
+	// Throw the recorded failure to an editor. Called holding this.
+	private void checkUsable() {
+		if (failure != null)
+			throw new RuntimeException("Journal in " + directory + " failed: " + failure,
+									   failure);
+	}
+
+	// Throw the recorded failure to a flush or snapshot. Called holding
+	// this.
+	private void checkNotFailed() throws IOException {
+		if (failure != null)
+			throw new IOException("Journal in " + directory + " failed earlier", failure);
+	}
+
+	// Fsync the directory, so that renaming the snapshot into place
+	// survives a crash. Platforms which cannot open a directory as a
+	// channel, such as Windows, are skipped.
+	private void syncDirectory() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Apply every complete, uncorrupted record of the journal to the
+	// sheet as one batch and return the offset just past the last one.
+	private static long replay(FileChannel journal, Spreadsheet sheet) throws IOException {
+		long size = journal.size();
+		if (size == 0)
+			return 0;
+		ByteBuffer in = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+		journal.position(0);
+		while (in.hasRemaining() && journal.read(in) > 0) {
+			// keep reading
+		}
+		in.flip();
+		Map<String, String> edits = new LinkedHashMap<String, String>();
+		long validEnd = 0;
+		while (in.remaining() >= HEADER_SIZE) {
+			int payload = in.getInt();
+			int expected = in.getInt();
+			if (payload < 9 || payload > in.remaining())
+				break;
+			byte[] record = new byte[payload];
+			in.get(record);
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			if ((int) crc.getValue() != expected)
+				break;
+			ByteBuffer fields = ByteBuffer.wrap(record);
+			byte op = fields.get();
+			String id = CellRef.toID(fields.getLong());
+			// Later edits of a cell replace earlier ones
+			edits.remove(id);
+			edits.put(id, op == SET ? new String(record, 9, payload - 9, StandardCharsets.UTF_8) : null);
+			validEnd = in.position();
+		}
+		sheet.applyBatch(edits);
+		return validEnd;
+	}
+}
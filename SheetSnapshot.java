@@ -0,0 +1,275 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Compact, versioned binary snapshot of a spreadsheet. Unlike
+// toSaveString() it keeps everything needed to rebuild a sheet
+// without parsing formulas, evaluating them or checking for cycles:
+//
+//   int    magic "ACKS", int version
+//   int    number of DAG nodes N, then N x (long ref, int position)
+//          giving the topological order of the dependency graph
+//   int    number of cells C, then C x cell:
+//            long   packed cell reference (see CellRef)
+//            byte   kind: NUMBER, STRING or FORMULA
+//            string contents as an int byte count and UTF-8 bytes
+//            double value (NUMBER and FORMULA)
+//            byte   0, or 1 + Cell.ErrorKind ordinal if in error (FORMULA)
+//            byte   1 if a compiled program follows (FORMULA), then the
+//                   program as written by FormulaProgram.writeTo(..)
+//
+// Only snapshots of the current version are read; older ones are
+// rejected and must be rebuilt from the journal or a save string. A
+// truncated or corrupt file raises an IOException naming it.
+//
+// All numbers are big-endian. Snapshots are written through a
+// FileChannel in buffer-sized chunks and read back through a
+// MappedByteBuffer, so neither side holds the whole file as a String.
+// A single mapping limits snapshots to 2GB. capture(..) instead keeps
+// the bytes in memory, so a snapshot can be taken quickly and written
+// to disk later.
+public class SheetSnapshot {
+	static final int MAGIC = 0x41434B53;
+	static final int VERSION = 3;
+	
+	static final byte NUMBER = 0;
+	static final byte STRING = 1;
+	static final byte FORMULA = 2;
+	
+	static final int BUFFER_SIZE = 1 << 16;
+
+	// Write the sheet to the given file, replacing its contents.
+	public static void write(Spreadsheet sheet, Path file) throws IOException {
+		FileChannel channel = open(file);
+		try {
+			writeTo(sheet, channel);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Return the snapshot of the sheet as bytes, for writing to a file
+	// later with write(byte[], Path) while the sheet changes.
+	static byte[] capture(Spreadsheet sheet) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(sheet, Channels.newChannel(bytes));
+		return bytes.toByteArray();
+	}
+
+	// Write a snapshot returned by capture(..) to the given file,
+	// replacing its contents.
+	static void write(byte[] snapshot, Path file) throws IOException {
+		FileChannel channel = open(file);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static FileChannel open(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+								StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	// Write the snapshot of the sheet to the channel in buffer-sized
+	// chunks
+	private static void writeTo(Spreadsheet sheet, WritableByteChannel channel) throws IOException {
+		Writer out = new Writer(channel);
+		out.ensure(8);
+		out.buffer.putInt(MAGIC);
+		out.buffer.putInt(VERSION);
+		
+		LongIntMap order = sheet.dag.topologicalOrder;
+		out.ensure(4);
+		out.buffer.putInt(order.size());
+		for (int i = order.next(-1); i >= 0; i = order.next(i)) {
+			out.ensure(12);
+			out.buffer.putLong(order.keyAt(i));
+			out.buffer.putInt(order.valueAt(i));
+		}
+		
+		LongObjectMap<Cell> cells = sheet.spreadsheetCells;
+		out.ensure(4);
+		out.buffer.putInt(cells.size());
+		for (int i = cells.next(-1); i >= 0; i = cells.next(i)) {
+			Cell cell = cells.valueAt(i);
+			byte kind = kindCode(cell.kind());
+			out.ensure(9);
+			out.buffer.putLong(cells.keyAt(i));
+			out.buffer.put(kind);
+			out.putString(cell.contents());
+			if (kind == STRING)
+				continue;
+			// Evaluate formulas left dirty by lazy mode
+			cell.ensureCurrent();
+			out.ensure(8);
+			out.buffer.putDouble(cell.doubleValue());
+			if (kind == NUMBER)
+				continue;
+			FormulaProgram program = cell.program();
+			out.ensure(2);
+			Cell.ErrorKind error = cell.errorKind();
+			out.buffer.put((byte) (error == null ? 0 : error.ordinal() + 1));
+			out.buffer.put((byte) (program == null ? 0 : 1));
+			if (program != null)
+				out.putProgram(program);
+		}
+		out.flush();
+	}
+
+	// Load a sheet from a file written by write(..).
+	public static Spreadsheet read(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot too large to map: " + file + " has " + channel.size() + " bytes");
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.remaining() < 8 || in.getInt() != MAGIC)
+				throw new IOException("Not a spreadsheet snapshot: " + file);
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			try {
+				return readSheet(in, file);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated snapshot: " + file, e);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Read the nodes and cells following the header. Lengths that run
+	// past the end of the file raise BufferUnderflowException.
+	private static Spreadsheet readSheet(ByteBuffer in, Path file) throws IOException {
+		Spreadsheet sheet = new Spreadsheet();
+		int nodes = in.getInt();
+		for (int i = 0; i < nodes; i++) {
+			long ref = in.getLong();
+			sheet.dag.restoreOrder(ref, in.getInt());
+		}
+		
+		int cells = in.getInt();
+		for (int i = 0; i < cells; i++) {
+			long ref = in.getLong();
+			byte kind = in.get();
+			String contents = getString(in);
+			Cell cell;
+			if (kind == STRING) {
+				cell = new Cell.StringCell(contents);
+			} else if (kind == NUMBER) {
+				cell = new Cell.NumberCell(contents, in.getDouble());
+			} else if (kind == FORMULA) {
+				double value = in.getDouble();
+				Cell.ErrorKind error = errorKind(in.get(), file);
+				FormulaProgram program = in.get() != 0 ? FormulaProgram.readFrom(in) : null;
+				cell = new Cell.FormulaCell(contents, error, value, program);
+				LongSet upstreamIDs = cell.getUpstreamRefs();
+				if (upstreamIDs.size() != 0)
+					sheet.dag.restoreLinks(ref, upstreamIDs);
+				if (cell.getRangeRefs() != null)
+					sheet.dag.restoreRanges(ref, cell.getRangeRefs());
+			} else {
+				throw new IOException("Corrupt snapshot " + file + ": unknown cell kind " + kind);
+			}
+			sheet.spreadsheetCells.put(ref, cell);
+		}
+		sheet.coverRanges();
+		return sheet;
+	}
+
+	private static byte kindCode(String kind) {
+		if (kind.equals("number"))
+			return NUMBER;
+		if (kind.equals("string"))
+			return STRING;
+		return FORMULA;
+	}
+
+	// Decode the error byte of a formula
+	private static Cell.ErrorKind errorKind(byte code, Path file) throws IOException {
+		if (code == 0)
+			return null;
+		Cell.ErrorKind[] kinds = Cell.ErrorKind.values();
+		if (code < 0 || code > kinds.length)
+			throw new IOException("Corrupt snapshot " + file + ": unknown error kind " + code);
+		return kinds[code - 1];
+	}
+
+	private static String getString(ByteBuffer in) {
+		byte[] bytes = new byte[FormulaProgram.length(in, 1)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Buffers writes to a channel, flushing whenever the next value
+	// would not fit.
+	private static class Writer {
+		final WritableByteChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		// Make room for the given number of bytes
+		void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+			if (buffer.remaining() < bytes)
+				throw new IOException("Value of " + bytes + " bytes exceeds the snapshot buffer");
+		}
+
+		// Strings and programs larger than the buffer are written
+		// straight to the channel from a buffer of their own
+		void putString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			ensure(4);
+			buffer.putInt(bytes.length);
+			if (bytes.length > buffer.capacity()) {
+				writeLarge(ByteBuffer.wrap(bytes));
+				return;
+			}
+			ensure(bytes.length);
+			buffer.put(bytes);
+		}
+
+		void putProgram(FormulaProgram program) throws IOException {
+			if (program.byteSize() > buffer.capacity()) {
+				ByteBuffer large = ByteBuffer.allocate(program.byteSize());
+				program.writeTo(large);
+				large.flip();
+				writeLarge(large);
+				return;
+			}
+			ensure(program.byteSize());
+			program.writeTo(buffer);
+		}
+
+		private void writeLarge(ByteBuffer large) throws IOException {
+			flush();
+			while (large.hasRemaining())
+				channel.write(large);
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
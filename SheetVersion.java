@@ -0,0 +1,89 @@
+// An immutable, consistent view of a spreadsheet as it was after one
+// committed edit, published by ConcurrentSheet. Every method may be
+// called from any thread without locking, and no view ever reflects a
+// partially applied edit or recalculation.
+//
+// Cells are kept in a PersistentLongMap by packed cell reference (see
+// CellRef), so consecutive versions share every cell an edit did not
+// touch.
+public final class SheetVersion {
+	private final long number;
+	private final PersistentLongMap<CellState> cells;
+
+	SheetVersion(long number, PersistentLongMap<CellState> cells) {
+		this.number = number;
+		this.cells = cells;
+	}
+
+	// Return the number of this version; each committed edit publishes
+	// the next one, starting from 0.
+	public long number() {
+		return number;
+	}
+
+	// Return the number of non-empty cells
+	public int size() {
+		return cells.size();
+	}
+
+	// Retrieve the string displayed for the value of the cell with the
+	// given ID, or "" if it is empty. Same as
+	// Spreadsheet.getCellDisplayString(..).
+	public String getCellDisplayString(String id) {
+		CellState cell = cells.get(CellRef.pack(id));
+		return cell == null ? "" : cell.display;
+	}
+
+	// Retrieve the contents of the cell with the given ID, or "" if it
+	// is empty. Same as Spreadsheet.getCellContents(..).
+	public String getCellContents(String id) {
+		CellState cell = cells.get(CellRef.pack(id));
+		return cell == null ? "" : cell.contents;
+	}
+
+	// Return the numeric value of the cell with the given ID as
+	// Cell.numberValue() does, or null if the cell is empty.
+	public Double numberValue(String id) {
+		CellState cell = cells.get(CellRef.pack(id));
+		return cell == null ? null : cell.numberValue;
+	}
+
+	// Return why the cell with the given ID is in error, or null if it
+	// is empty or not in error. Same as Cell.errorKind().
+	public Cell.ErrorKind errorKind(String id) {
+		CellState cell = cells.get(CellRef.pack(id));
+		return cell == null ? null : cell.error;
+	}
+
+	// Produce the same save string as Spreadsheet.toSaveString() would
+	// have for this version, in no particular cell order.
+	public String toSaveString() {
+		final StringBuilder strToRet = new StringBuilder();
+		cells.forEach(new PersistentLongMap.Visitor<CellState>() {
+			public void visit(long ref, CellState cell) {
+				strToRet.append(CellRef.toID(ref) + ":" + cell.contents + "\n");
+			}
+		});
+		return strToRet.toString();
+	}
+
+	PersistentLongMap<CellState> cells() {
+		return cells;
+	}
+
+	// What a version keeps of a cell: a copy of everything readers can
+	// ask for, taken when the cell was last touched by an edit.
+	static final class CellState {
+		final String contents;
+		final String display;
+		final Double numberValue;
+		final Cell.ErrorKind error;
+
+		CellState(Cell cell) {
+			this.contents = cell.contents();
+			this.display = cell.displayString();
+			this.numberValue = cell.numberValue();
+			this.error = cell.errorKind();
+		}
+	}
+}
@@ -1,201 +1,920 @@
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.Set;
-
-// Basic model for a spreadsheet.
-public class Spreadsheet {
-	
-	Map<String, Cell> spreadsheetCells;
-	DAG dag;
-	
-	// Construct a new empty spreadsheet
-	public Spreadsheet() {
-		// new HashMap for cells
-		spreadsheetCells = new HashMap<String,Cell>();
-		// DAG to store dependencies
-		dag = new DAG();
-	}
-
-	// Return a string representation of the spreadsheet. This should
-	// show a table of the cells ids, values, and contents along with
-	// the upstream and downstream links between cells. Ensure that
-	// StringBuilder and iterators over various maps are used to
-	// efficiently construct the string. The expected format is as
-	// follows.
-	//
-	// ID | Value | Contents
-	// -------+--------+---------------
-	// A1 | 5.0 | '5'
-	// D1 | 4.0 | '=4'
-	// C1 | 178.0 | '=22*A1 + 17*D1'
-	// B1 | hi | 'hi'
-	//
-	// Cell Dependencies
-	// Upstream Links:
-	// C1 : [A1, D1]
-	// Downstream Links:
-	// A1 : [C1]
-	// D1 : [C1]
-	//
-	public String toString() {
-		StringBuilder strToRet = new StringBuilder();
-		strToRet.append("    ID |  Value | Contents\n");
-		strToRet.append("-------+--------+---------------\n");
-		for (Iterator<Map.Entry<String, Cell>> it = spreadsheetCells.entrySet().iterator(); it.hasNext();)
-		{
-			Map.Entry<String, Cell> entry = it.next();
-			String cellID = entry.getKey();
-			Cell cell = entry.getValue();
-			strToRet.append(String.format("%6s", cellID) + " |" +  
-							String.format("%7s", cell.displayString()) + " | '" + cell.contents() + "'\n");
-			
-		}
-		strToRet.append("\nCell Dependencies\n");
-		strToRet.append(dag);
-		
-		return strToRet.toString();
-	}
-
-	// Produce a saveable string of the spreadsheet. A reasonable format
-	// is each cell id and its contents on a line. You may choose
-	// whatever format you like so long as the spreadsheet can be
-	// completely recreated using the fromSaveString(s) method.
-	public String toSaveString() {
-		StringBuilder strToRet = new StringBuilder();
-		for (Iterator<Map.Entry<String, Cell>> it = spreadsheetCells.entrySet().iterator(); it.hasNext();)
-		{
-			Map.Entry<String, Cell> entry = it.next();
-			String cellID = entry.getKey();
-			Cell cell = entry.getValue();
-			strToRet.append(cellID + ":" + cell.contents() + "\n");
-		}
-		return strToRet.toString();
-	}
-
-	// Load a spreadsheet from the given save string. Typical
-	// implementations will create an empty spreadsheet and repeatedly
-	// read input from the provided string setting cells based on the
-	// contents read.
-	public static Spreadsheet fromSaveString(String s) {
-		// New Sheet to Return
-		Spreadsheet newSheet = new Spreadsheet();
-		// Scanner to Read the String
-		Scanner sc = new Scanner(s);
-		// Loop to read all lines
-		while(sc.hasNext()) {
-			String line = sc.nextLine();
-			String[] id_content = line.split(":");
-			// Set a Cell with Cell id and it's content
-			newSheet.setCell(id_content[0], id_content[1]);
-		}
-		sc.close();
-		return newSheet;
-	}
-
-	// Check if a cell ID is well formatted. It must match the regular
-	// expression
-	//
-	// ^[A-Z]+[1-9][0-9]*$
-	//
-	// to be well formatted. If the ID is not formatted correctly, throw
-	// a RuntimeException. The str.matches(..) method is useful for
-	// this method.
-	public static void verifyIDFormat(String id) {
-		if ( ! id.matches("^[A-Z]+[1-9][0-9]*$") ) {
-			throw new RuntimeException("Invalid ID Format.");
-		}
-	}
-
-	// Retrieve a string which should be displayed for the value of the
-	// cell with the given ID. Return "" if the specified cell is empty.
-	public String getCellDisplayString(String id) {
-		Cell cell = spreadsheetCells.get(id);
-		if (cell.kind().equals("string")) {
-			return cell.contents();
-		} else {
-			return cell.displayString();
-		}
-	}
-
-	// Retrieve a string which is the actual contents of the cell with
-	// the given ID. Return "" if the specified cell is empty.
-	public String getCellContents(String id) {
-		Cell cell = spreadsheetCells.get(id);
-		if (!cell.contents().equals(""))
-			return cell.contents();
-		return "";
-	}
-
-	// Delete the contents of the cell with the given ID. Update all
-	// downstream cells of the change. If specified cell is empty, do
-	// nothing.
-	public void deleteCell(String id) {
-		Cell cell = spreadsheetCells.get(id);
-		if (cell.contents().equals(""))
-			return;
-		
-		// Remove the cell from the internal map
-		spreadsheetCells.remove(id);
-		
-		// Remove the cell from the internal DAG
-		dag.remove(id);
-		
-		// notify any downstream cells
-		notifyDownstreamOfChange(id);
-		
-	}
-
-	// Set the given cell with the given contents. If contents is "" or
-	// null, delete the cell indicated.
-	public void setCell(String id, String contents) {
-		// If contents is "" or null, delete the cell indicated.
-		if (contents == null || contents.trim().equals("")) {
-			deleteCell(id);
-		}
-		
-		// Delete any contents associated with B6 in the map from ids to Cells
-//		spreadsheetCells.remove(id);
-		// Create a new cell with the contents 
-		Cell cell = Cell.make(contents);
-		if (cell == null)
-			return;
-		// Extract the upstream dependencies for the cell
-		Set<String> upstreamIDs = cell.getUpstreamIDs();
-		// Attempt to add cell to the spreadsheet's DAG with its upstream dependencies 
-		try {
-			dag.add(id, upstreamIDs);
-		} catch (Exception e) {
-			throw e;
-		}
-		
-		// Associate in the spreadsheet's map cell with the newly created Cell
-		spreadsheetCells.put(id, cell);
-		
-		// Update the value of that cell passing in the spreadsheet's ID / Cell map
-		cell.updateValue(spreadsheetCells);
-		
-		// Notify any cells that are downstream from cell that its contents have changed 
-		notifyDownstreamOfChange(id);
-	
-	}
-
-	// Notify all downstream cells of a change in the given cell.
-	// Recursively notify subsequent cells. Guaranteed to terminate so
-	// long as there are no cycles in cell dependencies.
-	public void notifyDownstreamOfChange(String id) {
-		// Get the DownStream Links
-		Set<String> downLinks = dag.getDownstreamLinks(id);
-		// Iterate on them and Call updateValue for all of them
-		Iterator<String> iterator = downLinks.iterator();
-		while (iterator.hasNext()) {
-			String cellID = iterator.next();
-			Cell cell = spreadsheetCells.get(cellID);
-			cell.updateValue(spreadsheetCells);
-			// Recursive Call to Down Links of this Cell
-			notifyDownstreamOfChange(cellID);
-		}
-	}
-
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Basic model for a spreadsheet.
+//
+// Cells are stored by packed cell reference (see CellRef) in a
+// CellGrid, which keeps dense regions in chunks and scattered cells in
+// a primitive-keyed map; string IDs are only used by the public
+// methods, which pack them on entry.
+public class Spreadsheet {
+	
+	CellGrid spreadsheetCells;
+	DAG dag;
+	// Pool used for parallel recalculation, null for sequential
+	ForkJoinPool recalcPool;
+	// When set, changes only mark downstream formulas dirty and they
+	// are evaluated when read (see setLazy(..))
+	boolean lazy;
+	// Formulas evaluated and skipped by propagate(..)
+	long evaluatedCells;
+	long skippedCells;
+	// When not null, receives the refs of cells touched by edits (see
+	// trackChanges(..))
+	LongSet changeLog;
+	// Aggregates of the columns read by range formulas, kept current
+	// for every cell as it changes; empty while the sheet is lazy
+	RangeIndex rangeIndex;
+	// Figures of the edits made while metricsEnabled is set (see
+	// setMetricsEnabled(..))
+	final RecalcMetrics metrics = new RecalcMetrics();
+	boolean metricsEnabled;
+	// The edit being measured, or null if none is
+	private EditEvent currentEdit;
+	
+	// Affected sets and levels smaller than this are recalculated on
+	// the calling thread as forking would cost more than it saves
+	static final int PARALLEL_THRESHOLD = 256;
+	
+	// Construct a new empty spreadsheet
+	public Spreadsheet() {
+		// new grid of cells by packed reference
+		spreadsheetCells = new CellGrid();
+		// DAG to store dependencies
+		dag = new DAG();
+		rangeIndex = new RangeIndex(spreadsheetCells);
+	}
+
+	// Return a string representation of the spreadsheet. This should
+	// show a table of the cells ids, values, and contents along with
+	// the upstream and downstream links between cells. Ensure that
+	// StringBuilder and iterators over various maps are used to
+	// efficiently construct the string. Cells are listed row by row,
+	// left to right. The expected format is as follows.
+	//
+	// ID | Value | Contents
+	// -------+--------+---------------
+	// A1 | 5.0 | '5'
+	// B1 | hi | 'hi'
+	// C1 | 178.0 | '=22*A1 + 17*D1'
+	// D1 | 4.0 | '=4'
+	//
+	// Cell Dependencies
+	// Upstream Links:
+	// C1 : [A1, D1]
+	// Downstream Links:
+	// A1 : [C1]
+	// D1 : [C1]
+	//
+	public String toString() {
+		StringBuilder strToRet = new StringBuilder();
+		strToRet.append("    ID |  Value | Contents\n");
+		strToRet.append("-------+--------+---------------\n");
+		for (long ref : spreadsheetCells.refsInOrder())
+		{
+			String cellID = CellRef.toID(ref);
+			padLeft(strToRet, cellID, 6);
+			strToRet.append(" |");
+			padLeft(strToRet, spreadsheetCells.displayString(ref), 7);
+			strToRet.append(" | '").append(spreadsheetCells.get(ref).contents()).append("'\n");
+		}
+		strToRet.append("\nCell Dependencies\n");
+		strToRet.append(dag);
+		
+		return strToRet.toString();
+	}
+
+	// Append s right-aligned in a field of the given width, as
+	// String.format("%<width>s", s) would.
+	private static void padLeft(StringBuilder sb, String s, int width) {
+		for (int i = s.length(); i < width; i++)
+			sb.append(' ');
+		sb.append(s);
+	}
+
+	// Produce a saveable string of the spreadsheet. A reasonable format
+	// is each cell id and its contents on a line. You may choose
+	// whatever format you like so long as the spreadsheet can be
+	// completely recreated using the fromSaveString(s) method. Cells
+	// are written row by row, left to right.
+	public String toSaveString() {
+		StringBuilder strToRet = new StringBuilder();
+		for (long ref : spreadsheetCells.refsInOrder())
+		{
+			String cellID = CellRef.toID(ref);
+			Cell cell = spreadsheetCells.get(ref);
+			strToRet.append(cellID + ":" + cell.contents() + "\n");
+		}
+		return strToRet.toString();
+	}
+
+	// Save the spreadsheet to the given file as a binary snapshot which
+	// keeps compiled formulas, current values and the dependency order.
+	// See SheetSnapshot for the format.
+	public void saveSnapshot(Path file) throws IOException {
+		SheetSnapshot.write(this, file);
+	}
+
+	// Load a spreadsheet from a binary snapshot written by
+	// saveSnapshot(..). No formula is parsed or evaluated and no cycle
+	// check is run.
+	public static Spreadsheet loadSnapshot(Path file) throws IOException {
+		return SheetSnapshot.read(file);
+	}
+
+	// Load a spreadsheet from the given save string. Typical
+	// implementations will create an empty spreadsheet and repeatedly
+	// read input from the provided string setting cells based on the
+	// contents read.
+	//
+	// Rather than setting cells one at a time, which would check for
+	// cycles and recalculate on every line and evaluate forward
+	// references before their inputs exist, all cells are read first
+	// and then loaded in bulk (see bulkLoad(..)). Only the first colon
+	// of a line separates the ID from the contents, so contents may
+	// contain colons. Blank lines are skipped.
+	//
+	// Target Complexity: O(N + L)
+	public static Spreadsheet fromSaveString(String s) {
+		// New Sheet to Return
+		Spreadsheet newSheet = new Spreadsheet();
+		LongObjectMap<Cell> cells = new LongObjectMap<Cell>();
+		// Loop to read all lines
+		int start = 0;
+		while (start < s.length()) {
+			int end = s.indexOf('\n', start);
+			if (end < 0)
+				end = s.length();
+			String line = s.substring(start, end);
+			start = end + 1;
+			if (line.trim().equals(""))
+				continue;
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				throw new RuntimeException("Invalid save line: " + line);
+			// Make a Cell from the contents; later lines for the same ID win
+			long ref = CellRef.pack(line.substring(0, colon));
+			Cell cell = Cell.make(line.substring(colon + 1));
+			if (cell == null)
+				cells.remove(ref);
+			else
+				cells.put(ref, cell);
+		}
+		newSheet.bulkLoad(cells);
+		return newSheet;
+	}
+
+	// Load the given cells into this empty spreadsheet in one pass: all
+	// cells and links are installed first, a single topological sort
+	// of the whole DAG both checks for cycles and orders the cells, and
+	// every formula is then evaluated exactly once after its inputs. If
+	// there is a cycle, a CycleException is raised and the sheet must be
+	// discarded.
+	//
+	// Target Complexity: O(N + L)
+	void bulkLoad(LongObjectMap<Cell> cells) {
+		for (int i = cells.next(-1); i >= 0; i = cells.next(i)) {
+			long ref = cells.keyAt(i);
+			Cell cell = cells.valueAt(i);
+			spreadsheetCells.put(ref, cell);
+			LongSet upstreamIDs = cell.getUpstreamRefs();
+			if (upstreamIDs.size() != 0)
+				dag.restoreLinks(ref, upstreamIDs);
+			if (cell.getRangeRefs() != null)
+				dag.restoreRanges(ref, cell.getRangeRefs());
+		}
+		long[] order = dag.rebuildOrder();
+		if (!lazy)
+			coverRanges();
+		for (long ref : order) {
+			Cell cell = spreadsheetCells.get(ref);
+			if (cell != null) {
+				cell.recompute(spreadsheetCells, rangeIndex);
+				rangeIndex.update(ref, cell);
+			}
+		}
+	}
+
+	// Index every column read by a range formula of the sheet
+	void coverRanges() {
+		LongObjectMap<long[]> ranges = dag.rangeLinksMap;
+		for (int i = ranges.next(-1); i >= 0; i = ranges.next(i))
+			coverRanges(ranges.valueAt(i));
+	}
+
+	private void coverRanges(long[] ranges) {
+		for (int i = 0; i < ranges.length; i += 2)
+			rangeIndex.cover(ranges[i], ranges[i + 1]);
+	}
+
+	// Check if a cell ID is well formatted. It must match the regular
+	// expression
+	//
+	// ^[A-Z]+[1-9][0-9]*$
+	//
+	// to be well formatted. If the ID is not formatted correctly, throw
+	// a RuntimeException. The str.matches(..) method is useful for
+	// this method.
+	public static void verifyIDFormat(String id) {
+		if ( ! id.matches("^[A-Z]+[1-9][0-9]*$") ) {
+			throw new RuntimeException("Invalid ID Format.");
+		}
+	}
+
+	// Retrieve a string which should be displayed for the value of the
+	// cell with the given ID. Return "" if the specified cell is empty.
+	public String getCellDisplayString(String id) {
+		String display = spreadsheetCells.displayString(CellRef.pack(id));
+		if (display == null)
+			return "";
+		return display;
+	}
+
+	// Retrieve a string which is the actual contents of the cell with
+	// the given ID. Return "" if the specified cell is empty.
+	public String getCellContents(String id) {
+		Cell cell = spreadsheetCells.get(CellRef.pack(id));
+		if (cell != null && !cell.contents().equals(""))
+			return cell.contents();
+		return "";
+	}
+
+	// Delete the contents of the cell with the given ID. Update all
+	// downstream cells of the change. If specified cell is empty, do
+	// nothing.
+	public void deleteCell(String id) {
+		long ref = CellRef.pack(id);
+		Cell cell = spreadsheetCells.get(ref);
+		if (cell == null || cell.contents().equals(""))
+			return;
+		boolean measured = beginEdit(id, 1);
+		try {
+			// Remove the cell from the internal map
+			spreadsheetCells.remove(ref);
+			
+			// Remove the cell from the internal DAG
+			dag.remove(ref);
+			
+			// notify any downstream cells
+			notifyDownstreamOfChange(ref);
+		} finally {
+			if (measured)
+				endEdit();
+		}
+	}
+
+	// Set the given cell with the given contents. If contents is "" or
+	// null, delete the cell indicated.
+	public void setCell(String id, String contents) {
+		// If contents is "" or null, delete the cell indicated.
+		if (contents == null || contents.trim().equals("")) {
+			deleteCell(id);
+			return;
+		}
+		
+		long ref = CellRef.pack(id);
+		boolean measured = beginEdit(id, 1);
+		try {
+			// Create a new cell with the contents 
+			Cell cell = makeCell(contents);
+			if (cell == null)
+				return;
+			installCell(ref, cell);
+		} finally {
+			if (measured)
+				endEdit();
+		}
+	}
+
+	// Install an already made cell at the given packed reference, as
+	// setCell(String, String) does once it has made the cell.
+	void setCell(long ref, Cell cell) {
+		boolean measured = beginEdit(CellRef.toID(ref), 1);
+		try {
+			installCell(ref, cell);
+		} finally {
+			if (measured)
+				endEdit();
+		}
+	}
+
+	// The body of both setCell(..) methods, measured by its caller
+	private void installCell(long ref, Cell cell) {
+		// Attempt to add cell to the spreadsheet's DAG with its upstream
+		// dependencies; a CycleException leaves the sheet unchanged
+		long checkStart = startCycleCheck();
+		boolean linked = false;
+		try {
+			dag.add(ref, cell.getUpstreamRefs(), cell.getRangeRefs());
+			linked = true;
+		} finally {
+			endCycleCheck(checkStart, linked);
+		}
+		
+		// Associate in the spreadsheet's map cell with the newly created Cell
+		spreadsheetCells.put(ref, cell);
+		if (cell.getRangeRefs() != null && !lazy)
+			coverRanges(cell.getRangeRefs());
+		
+		// Update the value of that cell and of every cell downstream
+		// from it, each once and in dependency order
+		recalculate(new long[] { ref });
+	}
+
+	// Remove a cell without links from this sheet and return it, or
+	// null if ref is blank, keeping the range index current. Used with
+	// putUnlinked(..) by PartitionedSheet to move cells between sheets.
+	Cell takeUnlinked(long ref) {
+		Cell cell = spreadsheetCells.remove(ref);
+		if (cell != null)
+			rangeIndex.update(ref, null);
+		return cell;
+	}
+
+	// Put a cell without links taken from another sheet into this one,
+	// where ref must be blank. Its value is kept as it is, so no other
+	// cell is recalculated, but the range index is updated.
+	void putUnlinked(long ref, Cell cell) {
+		spreadsheetCells.put(ref, cell);
+		rangeIndex.update(ref, cell);
+	}
+
+	// Move every cell and dependency of other into this sheet. The two
+	// sheets must have no cells or DAG nodes in common, so no cycle can
+	// form and no value changes; other must not be used afterwards.
+	// Used by PartitionedSheet to merge dependency components.
+	//
+	// Target Complexity: O(N_other + L_other)
+	void absorb(Spreadsheet other) {
+		LongObjectMap<Cell> cells = other.spreadsheetCells;
+		for (int i = cells.next(-1); i >= 0; i = cells.next(i)) {
+			spreadsheetCells.put(cells.keyAt(i), cells.valueAt(i));
+			rangeIndex.update(cells.keyAt(i), cells.valueAt(i));
+		}
+		dag.absorb(other.dag);
+		if (!lazy)
+			coverRanges();
+		evaluatedCells += other.evaluatedCells;
+		skippedCells += other.skippedCells;
+	}
+
+	// Apply many edits to the sheet at once. Each entry maps a cell ID
+	// to its new contents; null or blank contents delete the cell.
+	// Every cell is created and the combined dependency change is
+	// checked for cycles once before the sheet is modified, so either
+	// all edits are applied or, if any contents are invalid or would
+	// create a cycle, none are and the exception is rethrown. Cells
+	// affected by any edit are then recomputed exactly once in
+	// dependency order.
+	//
+	// Target Complexity: O(E + A + L_A)
+	// E : number of edits
+	// A : number of cells affected by the edits
+	// L_A : number of links among those cells
+	public void applyBatch(Map<String, String> edits) {
+		boolean measured = beginEdit(null, edits.size());
+		try {
+			applyEdits(edits);
+		} finally {
+			if (measured)
+				endEdit();
+		}
+	}
+
+	private void applyEdits(Map<String, String> edits) {
+		// Stage new cells and their dependencies without touching the sheet
+		LongObjectMap<Cell> staged = new LongObjectMap<Cell>(edits.size());
+		LongObjectMap<LongSet> upstreamByID = new LongObjectMap<LongSet>(edits.size());
+		LongObjectMap<long[]> rangesByID = new LongObjectMap<long[]>();
+		for (Map.Entry<String, String> edit : edits.entrySet()) {
+			long ref = CellRef.pack(edit.getKey());
+			if (currentEdit != null && currentEdit.cell == null)
+				currentEdit.cell = edit.getKey();
+			Cell cell = makeCell(edit.getValue());
+			staged.put(ref, cell);
+			upstreamByID.put(ref, cell == null ? null : cell.getUpstreamRefs());
+			if (cell != null && cell.getRangeRefs() != null)
+				rangesByID.put(ref, cell.getRangeRefs());
+		}
+		
+		// Single cycle check for the whole batch; the DAG is left
+		// unchanged if this throws
+		long checkStart = startCycleCheck();
+		boolean linked = false;
+		try {
+			dag.addAll(upstreamByID, rangesByID);
+			linked = true;
+		} finally {
+			endCycleCheck(checkStart, linked);
+		}
+		
+		// Install the staged cells
+		long[] changed = new long[staged.size()];
+		int n = 0;
+		for (int i = staged.next(-1); i >= 0; i = staged.next(i)) {
+			long ref = staged.keyAt(i);
+			if (staged.valueAt(i) == null)
+				spreadsheetCells.remove(ref);
+			else
+				spreadsheetCells.put(ref, staged.valueAt(i));
+			changed[n++] = ref;
+		}
+		if (!lazy) {
+			for (int i = rangesByID.next(-1); i >= 0; i = rangesByID.next(i))
+				coverRanges(rangesByID.valueAt(i));
+		}
+		
+		// One recalculation pass over the union of affected cells
+		recalculate(changed);
+	}
+
+	// Notify all downstream cells of a change in the given cell.
+	// Every cell reachable through downstream links is recomputed
+	// exactly once, in an order where all of its upstream cells have
+	// already been brought up to date. Guaranteed to terminate so long
+	// as there are no cycles in cell dependencies.
+	//
+	// Target Complexity: O(A + L_A)
+	// A   : number of cells downstream of id
+	// L_A : number of links among those cells
+	public void notifyDownstreamOfChange(String id) {
+		notifyDownstreamOfChange(CellRef.pack(id));
+	}
+
+	// Packed form of notifyDownstreamOfChange(String).
+	void notifyDownstreamOfChange(long id) {
+		if (lazy) {
+			markDirty(dag.successors(id).toArray());
+			return;
+		}
+		propagate(new long[] { id }, false);
+	}
+
+	// Enable parallel recalculation on the given pool, or pass null to
+	// recalculate on the calling thread. Parallel recalculation
+	// computes exactly the same values as the sequential path.
+	public void setRecalcPool(ForkJoinPool pool) {
+		recalcPool = pool;
+	}
+
+	// Keep the values and error states of formulas off the Java heap
+	// in an OffHeapValues store, or bring them back onto the heap. Off
+	// the heap, recalculation writes values into direct buffers instead
+	// of fields and display strings are formatted when read rather than
+	// whenever a value changes, which spares the garbage collector on
+	// sheets with many millions of formulas. Values are the same
+	// either way.
+	//
+	// Target Complexity: O(N)
+	public void setOffHeapValues(boolean offHeap) {
+		if (offHeap != (spreadsheetCells.valueStore() != null))
+			spreadsheetCells.setValueStore(offHeap ? new OffHeapValues() : null);
+	}
+
+	// Start or stop recording metrics of the edits made to the sheet
+	// (see RecalcMetrics). While metrics are off, and no flight
+	// recording asks for EditEvents, edits are not timed at all and
+	// recalculation only tests that no edit is being measured.
+	public void setMetricsEnabled(boolean enabled) {
+		metricsEnabled = enabled;
+	}
+
+	// Return a snapshot of the metrics recorded so far; it does not
+	// change as the sheet is edited further.
+	public RecalcMetrics metrics() {
+		return metrics.copy();
+	}
+
+	/**
+	 * Helper Method: begin measuring an edit unless neither metrics nor
+	 * a flight recording want it, in which case no event is made. Only
+	 * the public entry points and setCell(long, Cell) call this; they
+	 * share their bodies through methods which do not.
+	 * @param id the cell edited, or null for a batch
+	 * @param cellsEdited
+	 * @return whether this call began measuring, in which case the
+	 *         caller must call endEdit() when done
+	 */
+	private boolean beginEdit(String id, int cellsEdited) {
+		if (!metricsEnabled && !EditEvent.recorded())
+			return false;
+		EditEvent event = new EditEvent();
+		event.begin();
+		event.startNanos = System.nanoTime();
+		event.cell = id;
+		event.cellsEdited = cellsEdited;
+		event.evaluatedBefore = evaluatedCells;
+		event.skippedBefore = skippedCells;
+		currentEdit = event;
+		return true;
+	}
+
+	// Finish measuring the current edit, whether it succeeded or not,
+	// recording it in the metrics and committing it to any recording
+	private void endEdit() {
+		EditEvent event = currentEdit;
+		currentEdit = null;
+		long nanos = System.nanoTime() - event.startNanos;
+		event.cellsEvaluated = evaluatedCells - event.evaluatedBefore;
+		event.cellsSkipped = skippedCells - event.skippedBefore;
+		if (metricsEnabled)
+			metrics.record(event, nanos);
+		event.commit();
+	}
+
+	// Make a cell as Cell.make(..) does, timing formulas for the edit
+	// being measured
+	private Cell makeCell(String contents) {
+		if (currentEdit == null || contents == null || !contents.trim().startsWith("="))
+			return Cell.make(contents);
+		long start = System.nanoTime();
+		try {
+			return Cell.make(contents);
+		} finally {
+			currentEdit.parseNanos += System.nanoTime() - start;
+			currentEdit.formulasParsed++;
+		}
+	}
+
+	// Return the start time of a cycle check if an edit is being
+	// measured
+	private long startCycleCheck() {
+		if (currentEdit == null)
+			return 0;
+		currentEdit.nodesVisited -= dag.visitedNodes;
+		return System.nanoTime();
+	}
+
+	// Record a cycle check begun by startCycleCheck() for the edit being
+	// measured; linked is false if the check found a cycle
+	private void endCycleCheck(long start, boolean linked) {
+		if (currentEdit == null)
+			return;
+		currentEdit.cycleCheckNanos += System.nanoTime() - start;
+		currentEdit.nodesVisited += dag.visitedNodes;
+		currentEdit.cycleChecked = true;
+		currentEdit.cycleFound |= !linked;
+	}
+
+	// Switch lazy evaluation on or off. In lazy mode a change does not
+	// recompute anything; it marks the changed formulas and every
+	// formula downstream of them dirty, and a dirty formula is
+	// evaluated, along with its dirty inputs, only when its value is
+	// read through Cell.numberValue(), Cell.displayString() or
+	// getCellDisplayString(..). Cells that are never read are never
+	// evaluated. Values read are the same as in eager mode. Switching
+	// lazy mode off evaluates every dirty cell.
+	//
+	// Reads modify dirty cells, so a lazy sheet must only be used from
+	// one thread at a time and ignores the recalculation pool. Range
+	// aggregates are not indexed while the sheet is lazy; they scan
+	// their ranges when evaluated.
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+		if (lazy) {
+			rangeIndex.clear();
+		} else {
+			for (int i = spreadsheetCells.next(-1); i >= 0; i = spreadsheetCells.next(i))
+				spreadsheetCells.valueAt(i).ensureCurrent();
+			coverRanges();
+		}
+	}
+
+	// Mark the given changed cells and every formula downstream of them
+	// dirty. A dirty cell's downstream cells are always dirty as well,
+	// so the walk does not continue past cells which already are.
+	//
+	// Target Complexity: O(M + L_M)
+	// M : number of cells newly marked
+	// L_M : number of links out of those cells
+	void markDirty(long[] changedIDs) {
+		long[] queue = new long[Math.max(changedIDs.length, 16)];
+		int tail = 0;
+		for (long ref : changedIDs) {
+			Cell cell = spreadsheetCells.get(ref);
+			if (cell != null)
+				cell.markDirty(spreadsheetCells);
+			// A new or deleted cell's downstream cells may be clean
+			if (tail == queue.length)
+				queue = Arrays.copyOf(queue, tail * 2);
+			queue[tail++] = ref;
+		}
+		for (int head = 0; head < tail; head++) {
+			LongSet downstream = dag.successors(queue[head]);
+			for (int i = downstream.next(-1); i >= 0; i = downstream.next(i)) {
+				long downID = downstream.keyAt(i);
+				Cell cell = spreadsheetCells.get(downID);
+				if (cell == null || !cell.markDirty(spreadsheetCells))
+					continue;
+				if (tail == queue.length)
+					queue = Arrays.copyOf(queue, tail * 2);
+				queue[tail++] = downID;
+			}
+		}
+	}
+
+	// Add the reference of every cell touched by later edits to the
+	// given set, or pass null to stop: the cells set or deleted and
+	// every formula re-evaluated because of them. Cells not added kept
+	// their contents, value and error state. Used by ConcurrentSheet to
+	// publish only what an edit changed.
+	void trackChanges(LongSet changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	// Recompute the given changed cells and every cell downstream of
+	// them, each exactly once and in dependency order. In lazy mode
+	// they are only marked dirty.
+	void recalculate(long[] changedIDs) {
+		propagate(changedIDs, true);
+	}
+
+	// Return how many formulas recalculation has evaluated since the
+	// sheet was created, not counting the cells being changed.
+	public long evaluatedCells() {
+		return evaluatedCells;
+	}
+
+	// Return how many formulas downstream of a change recalculation has
+	// skipped because none of their inputs changed value.
+	public long skippedCells() {
+		return skippedCells;
+	}
+
+	// Bring every cell downstream of the given changed cells up to date,
+	// evaluating the changed cells themselves first if evaluateChanged
+	// is set.
+	//
+	// Propagation is cut off early: a downstream formula is evaluated
+	// only if one of its inputs is a changed cell or was evaluated in
+	// this pass to a different value or error state (see
+	// Cell.recompute(..)). Cells are visited in topological order, so
+	// all inputs have been settled by then; those skipped keep a value
+	// which is still correct and are counted in skippedCells(). Formulas
+	// reading ranges are always evaluated once reached, which costs
+	// only a few index lookups per range.
+	//
+	// Target Complexity: O(A log A + L_A)
+	void propagate(long[] changedIDs, boolean evaluateChanged) {
+		if (changeLog != null) {
+			for (long ref : changedIDs)
+				changeLog.add(ref);
+		}
+		if (lazy) {
+			markDirty(changedIDs);
+			return;
+		}
+		long[] order = recalculationOrder(changedIDs);
+		// Cells whose value downstream formulas must re-read
+		LongSet changed = new LongSet(changedIDs.length);
+		for (long ref : changedIDs)
+			changed.add(ref);
+		boolean parallel = recalcPool != null && order.length >= PARALLEL_THRESHOLD;
+		if (!parallel) {
+			if (currentEdit != null)
+				recordPropagation(order.length, levelCount(levelsOf(order)));
+			for (long ref : order)
+				recordOutcome(ref, recalcCell(ref, changed, evaluateChanged), changed);
+			return;
+		}
+		List<long[]> levels = dependencyLevels(order);
+		if (currentEdit != null)
+			recordPropagation(order.length, levels.size());
+		// Cells on the same level do not read each other, so each level
+		// can be evaluated concurrently once the previous one is done.
+		// Joining a level publishes its values, and the changed set is
+		// only updated between levels.
+		for (long[] level : levels) {
+			byte[] outcomes = new byte[level.length];
+			recalcPool.invoke(new RecalcTask(this, level, changed, evaluateChanged,
+											 outcomes, 0, level.length));
+			for (int i = 0; i < level.length; i++)
+				recordOutcome(level[i], outcomes[i], changed);
+		}
+	}
+
+	// Outcomes of recalcCell(..)
+	static final byte PASSED = 0;
+	static final byte SKIPPED = 1;
+	static final byte UNCHANGED = 2;
+	static final byte CHANGED = 3;
+	// One of the changed cells themselves
+	static final byte ROOT = 4;
+
+	// Bring a single cell of a recalculation order up to date and
+	// return what happened to it. Only reads shared state and writes
+	// the cell itself, so cells of one level may be handled
+	// concurrently.
+	byte recalcCell(long ref, LongSet changed, boolean evaluateChanged) {
+		Cell cell = spreadsheetCells.get(ref);
+		if (changed.contains(ref)) {
+			if (cell != null && evaluateChanged)
+				cell.recompute(spreadsheetCells, rangeIndex);
+			return ROOT;
+		}
+		if (cell == null)
+			return PASSED;
+		LongSet upstream = dag.upstreamLinks(ref);
+		for (int i = upstream.next(-1); i >= 0; i = upstream.next(i)) {
+			if (changed.contains(upstream.keyAt(i)))
+				return cell.recompute(spreadsheetCells, rangeIndex) ? CHANGED : UNCHANGED;
+		}
+		if (dag.rangeLinks(ref) != null)
+			return cell.recompute(spreadsheetCells, rangeIndex) ? CHANGED : UNCHANGED;
+		return SKIPPED;
+	}
+
+	// Count the outcome of recalcCell(..) for the given cell, add it to
+	// the changed set if its value changed and bring the range index up
+	// to date with it. Runs on the calling thread between levels, so
+	// the index is only written while no cell reads it.
+	private void recordOutcome(long ref, byte outcome, LongSet changed) {
+		if (outcome == ROOT || outcome == CHANGED)
+			rangeIndex.update(ref, spreadsheetCells.get(ref));
+		if (currentEdit != null && outcome != SKIPPED && outcome != PASSED)
+			countError(ref);
+		if (outcome == SKIPPED) {
+			skippedCells++;
+		} else if (outcome != PASSED && outcome != ROOT) {
+			evaluatedCells++;
+			if (changeLog != null)
+				changeLog.add(ref);
+			if (outcome == CHANGED)
+				changed.add(ref);
+		}
+	}
+
+	// Count the cell if it is in error for the edit being measured
+	private void countError(long ref) {
+		Cell cell = spreadsheetCells.get(ref);
+		if (cell != null && cell.isError())
+			currentEdit.errorCells++;
+	}
+
+	// Add a recalculation of the given number of cells on the given
+	// number of levels to the edit being measured
+	private void recordPropagation(int cells, int levels) {
+		currentEdit.propagationWidth += cells;
+		currentEdit.propagationDepth = Math.max(currentEdit.propagationDepth, levels);
+	}
+
+	// Group cells given in topological order into dependency levels (see
+	// levelsOf(..)), each in the order the cells were given.
+	//
+	// Target Complexity: O(A + L_A)
+	List<long[]> dependencyLevels(long[] order) {
+		int[] levelAt = levelsOf(order);
+		int levels = levelCount(levelAt);
+		int[] levelSizes = new int[levels];
+		for (int level : levelAt)
+			levelSizes[level]++;
+		List<long[]> result = new ArrayList<long[]>(levels);
+		for (int level = 0; level < levels; level++)
+			result.add(new long[levelSizes[level]]);
+		int[] filled = new int[levels];
+		for (int i = 0; i < order.length; i++) {
+			int level = levelAt[i];
+			result.get(level)[filled[level]++] = order[i];
+		}
+		return result;
+	}
+
+	// Return the number of levels of the given levelsOf(..)
+	private static int levelCount(int[] levelAt) {
+		int levels = 0;
+		for (int level : levelAt)
+			levels = Math.max(levels, level + 1);
+		return levels;
+	}
+
+	// Return the dependency level of each cell given in topological
+	// order, by its index in the order. A cell's level is one more than
+	// the highest level of any upstream cell in the order, so cells on
+	// one level never depend on each other. Cells in the ranges of a
+	// formula count as its upstream cells; those without a position can
+	// only be changed cells on level 0, so formulas reading ranges start
+	// at level 1.
+	//
+	// Target Complexity: O(A + L_A)
+	private int[] levelsOf(long[] order) {
+		LongSet inOrder = new LongSet(order.length);
+		for (long ref : order)
+			inOrder.add(ref);
+		// Level of each cell, indexed by its slot in inOrder
+		int[] levelOf = new int[inOrder.capacity()];
+		int[] levelAt = new int[order.length];
+		for (int index = 0; index < order.length; index++) {
+			long ref = order[index];
+			int level = 0;
+			LongSet upstream = dag.upstreamLinks(ref);
+			for (int i = upstream.next(-1); i >= 0; i = upstream.next(i)) {
+				int slot = inOrder.slot(upstream.keyAt(i));
+				if (slot >= 0 && levelOf[slot] + 1 > level)
+					level = levelOf[slot] + 1;
+			}
+			long[] ranges = dag.rangeLinks(ref);
+			if (ranges != null) {
+				level = Math.max(level, 1);
+				LongSet inside = dag.positionedIn(ranges);
+				for (int i = inside.next(-1); i >= 0; i = inside.next(i)) {
+					int slot = inOrder.slot(inside.keyAt(i));
+					if (slot >= 0 && levelOf[slot] + 1 > level)
+						level = levelOf[slot] + 1;
+				}
+			}
+			levelOf[inOrder.slot(ref)] = level;
+			levelAt[index] = level;
+		}
+		return levelAt;
+	}
+
+	// Handles a slice of one dependency level, splitting it in half
+	// until slices are small enough to run directly. The cell map, the
+	// DAG and the changed set are only read while a level is handled
+	// and each cell only writes its own value and outcome, so no
+	// further synchronization is needed.
+	static class RecalcTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Spreadsheet sheet;
+		private final long[] level;
+		private final LongSet changed;
+		private final boolean evaluateChanged;
+		private final byte[] outcomes;
+		private final int from, to;
+
+		RecalcTask(Spreadsheet sheet, long[] level, LongSet changed, boolean evaluateChanged,
+				   byte[] outcomes, int from, int to) {
+			this.sheet = sheet;
+			this.level = level;
+			this.changed = changed;
+			this.evaluateChanged = evaluateChanged;
+			this.outcomes = outcomes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				for (int i = from; i < to; i++)
+					outcomes[i] = sheet.recalcCell(level[i], changed, evaluateChanged);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RecalcTask(sheet, level, changed, evaluateChanged, outcomes, from, mid),
+					  new RecalcTask(sheet, level, changed, evaluateChanged, outcomes, mid, to));
+		}
+	}
+
+	// Return the given changed IDs together with every cell downstream
+	// of them in topological order: a cell appears only after every
+	// cell in the result that it reads from.
+	//
+	// The affected subgraph is collected by a breadth-first walk over
+	// downstream links, and range links into formulas reading the cells
+	// (see DAG.successors(..)), and then sorted by the positions of the DAG's
+	// maintained topological order. Cells without links have no
+	// position and may go anywhere, so they are put first.
+	//
+	// Target Complexity: O(A log A + L_A)
+	long[] recalculationOrder(long[] changedIDs) {
+		// Collect the changed cells and every cell reachable from them;
+		// the array doubles as the breadth-first queue
+		LongSet affected = new LongSet(changedIDs.length);
+		long[] queue = new long[Math.max(changedIDs.length, 16)];
+		int tail = 0;
+		for (long ref : changedIDs) {
+			if (affected.add(ref))
+				queue[tail++] = ref;
+		}
+		for (int head = 0; head < tail; head++) {
+			LongSet downstream = dag.successors(queue[head]);
+			for (int i = downstream.next(-1); i >= 0; i = downstream.next(i)) {
+				long downID = downstream.keyAt(i);
+				if (affected.add(downID)) {
+					if (tail == queue.length)
+						queue = Arrays.copyOf(queue, tail * 2);
+					queue[tail++] = downID;
+				}
+			}
+		}
+		
+		// Sort by position, carrying each cell's queue index in the low bits
+		long[] keyed = new long[tail];
+		for (int i = 0; i < tail; i++)
+			keyed[i] = ((long) (dag.order(queue[i]) + 1) << 32) | i;
+		Arrays.sort(keyed);
+		long[] order = new long[tail];
+		for (int i = 0; i < tail; i++)
+			order[i] = queue[(int) keyed[i]];
+		return order;
+	}
+
 }
\ No newline at end of file
@@ -6,7 +6,16 @@ public enum TokenType {
 	Divide("/"), 
 	Negate("negate"), 
 	CellID("CellID"), 
-	Number("Number");
+	Number("Number"),
+	// A rectangular block of cells such as A1:B10, only valid as the
+	// argument of an aggregate
+	Range("Range"),
+	// Aggregates of a range; the range is their left child
+	Sum("SUM"),
+	Min("MIN"),
+	Max("MAX"),
+	Count("COUNT"),
+	Average("AVERAGE");
 
 	// String representation of the token
 	public String typeString;
@@ -14,4 +23,19 @@ public enum TokenType {
 	TokenType(String s) {
 		this.typeString = s;
 	}
+
+	// Return the aggregate named by the given function name, or null if
+	// there is none
+	public static TokenType aggregate(String name) {
+		for (TokenType type : new TokenType[] { Sum, Min, Max, Count, Average }) {
+			if (type.typeString.equals(name))
+				return type;
+		}
+		return null;
+	}
+
+	// Returns whether this is one of the aggregate functions
+	public boolean isAggregate() {
+		return aggregate(typeString) == this;
+	}
 }
@@ -0,0 +1,76 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Builds synthetic sheets for benchmarking as maps from cell ID to
+// contents, ready for Spreadsheet.applyBatch(..) or for setting cell
+// by cell. Every shape is fully determined by its size and seed, so
+// the same workload is produced on every run. The first cell of every
+// shape is the root input A1; editing it recalculates the rest.
+public class SheetGenerator {
+
+	// A1 = 1 and each A(i+1) = A(i) + 1: one long path.
+	public static Map<String, String> chain(int cells) {
+		Map<String, String> sheet = new LinkedHashMap<String, String>();
+		sheet.put("A1", "1");
+		for (int row = 2; row <= cells; row++) {
+			sheet.put("A" + row, "=A" + (row - 1) + "+1");
+		}
+		return sheet;
+	}
+
+	// Stacked diamonds: B(i) and C(i) both read A(i) and A(i+1) reads
+	// both of them, so the number of paths from A1 doubles per diamond.
+	public static Map<String, String> diamond(int diamonds) {
+		Map<String, String> sheet = new LinkedHashMap<String, String>();
+		sheet.put("A1", "1");
+		for (int i = 1; i <= diamonds; i++) {
+			sheet.put("B" + i, "=A" + i + "+1");
+			sheet.put("C" + i, "=A" + i + "*2");
+			sheet.put("A" + (i + 1), "=(B" + i + "+C" + i + ")/3");
+		}
+		return sheet;
+	}
+
+	// A1 feeds every cell of column B directly: one wide level.
+	public static Map<String, String> fanOut(int cells) {
+		Map<String, String> sheet = new LinkedHashMap<String, String>();
+		sheet.put("A1", "1");
+		for (int row = 1; row < cells; row++) {
+			sheet.put("B" + row, "=A1*" + row);
+		}
+		return sheet;
+	}
+
+	// Column A holds inputs and every cell of column B reads between
+	// one and maxInputs cells chosen at random among the inputs and
+	// the earlier cells of column B.
+	public static Map<String, String> randomDag(int cells, int maxInputs, long seed) {
+		Random random = new Random(seed);
+		int inputs = Math.max(1, cells / 10);
+		Map<String, String> sheet = new LinkedHashMap<String, String>();
+		for (int row = 1; row <= inputs; row++) {
+			sheet.put("A" + row, Integer.toString(random.nextInt(100)));
+		}
+		String[] operators = { "+", "-", "*", "/" };
+		for (int row = 1; row <= cells - inputs; row++) {
+			StringBuilder formula = new StringBuilder("=");
+			int count = 1 + random.nextInt(maxInputs);
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					formula.append(operators[random.nextInt(operators.length)]);
+				int pick = random.nextInt(inputs + row - 1);
+				formula.append(pick < inputs ? "A" + (pick + 1) : "B" + (pick - inputs + 1));
+			}
+			sheet.put("B" + row, formula.toString());
+		}
+		return sheet;
+	}
+
+	// Load the given contents into a new spreadsheet
+	public static Spreadsheet build(Map<String, String> contents) {
+		Spreadsheet sheet = new Spreadsheet();
+		sheet.applyBatch(contents);
+		return sheet;
+	}
+}
@@ -0,0 +1,178 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import bench.Workload;
+
+// The operations timed by the JMH benchmarks of package bench, built
+// from SheetGenerator with fixed seeds so every run times the same
+// work. JMH does not accept benchmark classes in the default package,
+// and a class in a named package cannot refer to the default package
+// the spreadsheet lives in, so this class implements bench.Workload
+// and the benchmarks look up their operation through it by name and
+// call it through IntFunction.
+//
+// Each operation is given the number of the invocation and returns a
+// result for the benchmark to consume, so the work cannot be optimized
+// away.
+public class Workloads implements Workload {
+	static final long SEED = 20240601L;
+
+	@Override
+	public IntFunction<Object> get(String name, int size) {
+		switch (name) {
+		case "setCell/chain":
+			return setRoot(SheetGenerator.chain(size));
+		case "setCell/diamond":
+			return setRoot(SheetGenerator.diamond(size / 3));
+		case "setCell/fan-out":
+			return setRoot(SheetGenerator.fanOut(size));
+		case "setCell/random-dag":
+			return setRoot(SheetGenerator.randomDag(size, 3, SEED));
+		case "dag/edit":
+			return dagEdit(size);
+		case "formula/parse":
+			return parse(size, false);
+		case "formula/parseWithAntlr":
+			return parse(size, true);
+		case "formula/parseCached":
+			return parseCached();
+		case "formula/evalFormulaTree":
+			return evalFormulaTree();
+		case "formula/compiled":
+			return compiled();
+		case "save/toSaveString":
+			return toSaveString(size);
+		case "save/fromSaveString":
+			return fromSaveString(size);
+		default:
+			throw new RuntimeException("Unknown workload: " + name);
+		}
+	}
+
+	// Set the root input A1 of a sheet of the given contents, which
+	// recalculates the rest, and read back the display of a cell
+	static IntFunction<Object> setRoot(Map<String, String> contents) {
+		final Spreadsheet sheet = SheetGenerator.build(contents);
+		final String last = lastKey(contents);
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				sheet.setCell("A1", Integer.toString(invocation % 100));
+				return sheet.getCellDisplayString(last);
+			}
+		};
+	}
+
+	// Remove a node of a DAG with the given number of links and add it
+	// back, as editing a cell of a large sheet does. Each node links
+	// to two earlier nodes chosen at random, so the graph is acyclic.
+	static IntFunction<Object> dagEdit(int links) {
+		final int nodes = links / 2 + 1;
+		Random random = new Random(SEED);
+		final long[] refs = new long[nodes];
+		final LongSet[] upstream = new LongSet[nodes];
+		final DAG dag = new DAG();
+		for (int i = 0; i < nodes; i++) {
+			refs[i] = CellRef.pack("A" + (i + 1));
+			if (i < 2)
+				continue;
+			upstream[i] = new LongSet();
+			upstream[i].add(refs[random.nextInt(i)]);
+			upstream[i].add(refs[random.nextInt(i)]);
+			dag.add(refs[i], upstream[i]);
+		}
+		final int[] order = new int[1 << 16];
+		for (int i = 0; i < order.length; i++)
+			order[i] = 2 + random.nextInt(nodes - 2);
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				int i = order[invocation & (order.length - 1)];
+				dag.remove(refs[i]);
+				dag.add(refs[i], upstream[i]);
+				return dag;
+			}
+		};
+	}
+
+	// Parse distinct formulas without the parse cache, with the Pratt
+	// parser or with ANTLR alone
+	static IntFunction<Object> parse(int count, final boolean antlr) {
+		final String[] distinct = new String[count];
+		for (int i = 0; i < distinct.length; i++)
+			distinct[i] = "=A" + (i + 1) + "*(60*60*24) + B" + (i + 2) + "/" + i;
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				String formula = distinct[invocation % distinct.length];
+				return antlr ? FNode.parseWithAntlr(formula) : FNode.parseUncached(formula);
+			}
+		};
+	}
+
+	static final String FORMULA = "=A1 + -5.23 *(2+3+A4) / ZD11 - B7*B8*(C9-1)";
+
+	// Parse the same formula, which the parse cache answers
+	static IntFunction<Object> parseCached() {
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				return FNode.parseFormulaString(FORMULA);
+			}
+		};
+	}
+
+	// Evaluate a formula by walking its tree
+	static IntFunction<Object> evalFormulaTree() {
+		final FNode root = FNode.parseFormulaString(FORMULA);
+		final Map<String, Cell> cells = formulaInputs();
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				return Cell.evalFormulaTree(root, cells);
+			}
+		};
+	}
+
+	// Evaluate the same formula with its compiled program
+	static IntFunction<Object> compiled() {
+		final Cell cell = Cell.make(FORMULA);
+		final Map<String, Cell> cells = formulaInputs();
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				cell.updateValue(cells);
+				return cell.numberValue();
+			}
+		};
+	}
+
+	static IntFunction<Object> toSaveString(int size) {
+		final Spreadsheet sheet = SheetGenerator.build(SheetGenerator.randomDag(size, 3, SEED));
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				return sheet.toSaveString();
+			}
+		};
+	}
+
+	static IntFunction<Object> fromSaveString(int size) {
+		final String saved = SheetGenerator.build(SheetGenerator.randomDag(size, 3, SEED)).toSaveString();
+		return new IntFunction<Object>() {
+			public Object apply(int invocation) {
+				return Spreadsheet.fromSaveString(saved);
+			}
+		};
+	}
+
+	// Number cells for every reference of FORMULA
+	private static Map<String, Cell> formulaInputs() {
+		Map<String, Cell> cells = new HashMap<String, Cell>();
+		for (String id : new String[] { "A1", "A4", "ZD11", "B7", "B8", "C9" })
+			cells.put(id, Cell.make(Integer.toString(id.length() + 1)));
+		return cells;
+	}
+
+	private static String lastKey(Map<String, String> contents) {
+		String last = null;
+		for (String id : contents.keySet())
+			last = id;
+		return last;
+	}
+}
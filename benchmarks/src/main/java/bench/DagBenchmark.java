@@ -0,0 +1,44 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// DAG.remove(..) of a node followed by DAG.add(..) putting it back, on
+// random acyclic graphs of growing size. The time should stay flat as
+// the graph grows.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DagBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int links;
+
+	private IntFunction<Object> edit;
+	private int invocation;
+
+	@Setup
+	public void setup() {
+		edit = Workload.load("dag/edit", links);
+	}
+
+	@Benchmark
+	public void removeAndAdd(Blackhole blackhole) {
+		blackhole.consume(edit.apply(invocation++));
+	}
+}
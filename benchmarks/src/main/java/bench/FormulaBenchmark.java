@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Parsing formulas with ANTLR alone, with the Pratt parser in front of
+// it and with the parse cache, and evaluating
+// one by walking its tree and by running its compiled program.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaBenchmark {
+	private IntFunction<Object> parse;
+	private IntFunction<Object> parseWithAntlr;
+	private IntFunction<Object> parseCached;
+	private IntFunction<Object> evalFormulaTree;
+	private IntFunction<Object> compiled;
+	private int invocation;
+
+	@Setup
+	public void setup() {
+		parse = Workload.load("formula/parse", 1000);
+		parseWithAntlr = Workload.load("formula/parseWithAntlr", 1000);
+		parseCached = Workload.load("formula/parseCached", 0);
+		evalFormulaTree = Workload.load("formula/evalFormulaTree", 0);
+		compiled = Workload.load("formula/compiled", 0);
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) {
+		blackhole.consume(parse.apply(invocation++));
+	}
+
+	@Benchmark
+	public void parseWithAntlr(Blackhole blackhole) {
+		blackhole.consume(parseWithAntlr.apply(invocation++));
+	}
+
+	@Benchmark
+	public void parseCached(Blackhole blackhole) {
+		blackhole.consume(parseCached.apply(invocation++));
+	}
+
+	@Benchmark
+	public void evalFormulaTree(Blackhole blackhole) {
+		blackhole.consume(evalFormulaTree.apply(invocation++));
+	}
+
+	@Benchmark
+	public void compiled(Blackhole blackhole) {
+		blackhole.consume(compiled.apply(invocation++));
+	}
+}
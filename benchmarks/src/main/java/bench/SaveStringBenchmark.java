@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Spreadsheet.toSaveString() and Spreadsheet.fromSaveString(..) of a
+// random-DAG sheet from SheetGenerator.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveStringBenchmark {
+	@Param({ "10000" })
+	public int size;
+
+	private IntFunction<Object> toSaveString;
+	private IntFunction<Object> fromSaveString;
+	private int invocation;
+
+	@Setup
+	public void setup() {
+		toSaveString = Workload.load("save/toSaveString", size);
+		fromSaveString = Workload.load("save/fromSaveString", size);
+	}
+
+	@Benchmark
+	public void toSaveString(Blackhole blackhole) {
+		blackhole.consume(toSaveString.apply(invocation++));
+	}
+
+	@Benchmark
+	public void fromSaveString(Blackhole blackhole) {
+		blackhole.consume(fromSaveString.apply(invocation++));
+	}
+}
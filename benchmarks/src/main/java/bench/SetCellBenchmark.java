@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Spreadsheet.setCell(..) on the root input of sheets shaped by
+// SheetGenerator, so each edit recalculates everything downstream.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetCellBenchmark {
+	@Param({ "chain", "diamond", "fan-out", "random-dag" })
+	public String shape;
+
+	@Param({ "10000" })
+	public int size;
+
+	private IntFunction<Object> setRoot;
+	private int invocation;
+
+	@Setup
+	public void setup() {
+		setRoot = Workload.load("setCell/" + shape, size);
+	}
+
+	@Benchmark
+	public void setRoot(Blackhole blackhole) {
+		blackhole.consume(setRoot.apply(invocation++));
+	}
+}
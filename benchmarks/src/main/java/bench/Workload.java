@@ -0,0 +1,24 @@
+package bench;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.function.IntFunction;
+
+// The operations the benchmarks time. The spreadsheet lives in the
+// default package, which code in this package cannot name, so the
+// Workloads class there implements this interface and is registered
+// as its provider in META-INF/services/bench.Workload.
+public interface Workload {
+	// Return the operation of the given name on a workload of the
+	// given size. Unknown names raise a RuntimeException.
+	IntFunction<Object> get(String name, int size);
+
+	// Return the operation of the given name from the registered
+	// Workload
+	static IntFunction<Object> load(String name, int size) {
+		Iterator<Workload> providers = ServiceLoader.load(Workload.class).iterator();
+		if (!providers.hasNext())
+			throw new RuntimeException("No Workload is registered");
+		return providers.next().get(name, size);
+	}
+}
@@ -0,0 +1,286 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+// Checks PartitionedSheet against a single Spreadsheet given the same
+// edits: each edit must be accepted or rejected by both, and every
+// cell must show the same value after it.
+class PartitionedSheetTest {
+	static final String[] COLUMNS = { "A", "B", "C", "D", "E", "F" };
+	static final int ROWS = 17;
+	static final String[] AGGREGATES = { "SUM", "MIN", "MAX", "COUNT", "AVERAGE" };
+	// Writer w of concurrentEdits() edits column COLUMNS[w]; the
+	// numbers in the columns after the writers' never change
+	static final int WRITERS = 4;
+	static final int READERS = 2;
+	static final int EDITS = 5000;
+	// Unchanging numbers summed by DENSE_SUM, enough of them for the
+	// component holding them to keep them in one CellGrid chunk
+	static final String[] DENSE_COLUMNS = { "I", "J", "K", "L" };
+	static final int DENSE_ROWS = 200;
+	static final String DENSE_SUM = "M1";
+
+	// Cells gathered into a component for an edit it rejects must
+	// still reach the range index of the component they end up in
+	@Test
+	void rangeOverCellsOfARejectedEdit() {
+		Spreadsheet sheet = new Spreadsheet();
+		PartitionedSheet partitioned = new PartitionedSheet();
+		edit(sheet, partitioned, "E2", "4");
+		edit(sheet, partitioned, "B2", "=SUM(A2:B17)");
+		edit(sheet, partitioned, "F12", "=MIN(B3:F11)");
+		edit(sheet, partitioned, "B2", "=SUM(D2:F2)");
+		assertEquals("4.0", partitioned.getCellDisplayString("B2"));
+		assertSameCells(sheet, partitioned, "after the last edit");
+	}
+
+	@Test
+	void randomEdits() {
+		for (long seed = 1; seed <= 20; seed++) {
+			Random random = new Random(seed);
+			Spreadsheet sheet = new Spreadsheet();
+			PartitionedSheet partitioned = new PartitionedSheet();
+			for (int step = 0; step < 500; step++) {
+				String id = randomID(random);
+				String contents = randomContents(random);
+				edit(sheet, partitioned, id, contents);
+				assertSameCells(sheet, partitioned, "seed " + seed + " step " + step + ": " + id + " = " + contents);
+			}
+			Spreadsheet saved = Spreadsheet.fromSaveString(sheet.toSaveString());
+			Spreadsheet partitionedSaved = Spreadsheet.fromSaveString(partitioned.toSaveString());
+			for (String id : ids()) {
+				assertEquals(saved.getCellDisplayString(id), partitionedSaved.getCellDisplayString(id), id + ", seed " + seed);
+				assertEquals(saved.getCellContents(id), partitionedSaved.getCellContents(id), id + ", seed " + seed);
+			}
+		}
+	}
+
+	// Writers each edit their own column while readers read the cells
+	// which never change: the numbers after the writers' columns, the
+	// dense numbers and DENSE_SUM. Formulas of writer w refer only to
+	// the columns of writers up to w and to unchanging cells, so every
+	// cycle lies within one column and whether an edit is rejected
+	// does not depend on how the writers interleave. Edits still merge
+	// components across columns, pull unchanging cells into them and
+	// give them back when rejected. The result must equal that of
+	// applying the writers' edits one writer after another to a single
+	// Spreadsheet.
+	@Test
+	void concurrentEdits() throws Exception {
+		for (long seed = 1; seed <= 5; seed++) {
+			Random random = new Random(seed);
+			final PartitionedSheet partitioned = new PartitionedSheet();
+			Spreadsheet sheet = new Spreadsheet();
+			final List<String> fixedIDs = fixedIDs();
+			for (String id : fixedIDs) {
+				String contents = id.equals(DENSE_SUM) ? "=SUM(I1:L" + DENSE_ROWS + ")"
+					: Integer.toString(random.nextInt(10));
+				edit(sheet, partitioned, id, contents);
+			}
+			final List<String> fixedDisplays = new ArrayList<String>();
+			for (String id : fixedIDs)
+				fixedDisplays.add(sheet.getCellDisplayString(id));
+			
+			final String[][] ids = new String[WRITERS][EDITS];
+			final String[][] contents = new String[WRITERS][EDITS];
+			for (int writer = 0; writer < WRITERS; writer++) {
+				for (int i = 0; i < ids[writer].length; i++) {
+					ids[writer][i] = COLUMNS[writer] + (1 + random.nextInt(ROWS));
+					contents[writer][i] = writerContents(random, writer);
+				}
+			}
+			final boolean[][] rejected = new boolean[WRITERS][EDITS];
+			// Released once every thread is running, so they overlap
+			final CountDownLatch start = new CountDownLatch(WRITERS + READERS);
+			final CountDownLatch writing = new CountDownLatch(WRITERS);
+			ExecutorService threads = Executors.newFixedThreadPool(WRITERS + READERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					// A deadlocked thread must not keep the JVM alive
+					Thread thread = new Thread(r);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int w = 0; w < WRITERS; w++) {
+				final int writer = w;
+				results.add(threads.submit(new Runnable() {
+					public void run() {
+						try {
+							await(start);
+							for (int i = 0; i < ids[writer].length; i++) {
+								try {
+									partitioned.setCell(ids[writer][i], contents[writer][i]);
+								} catch (RuntimeException e) {
+									rejected[writer][i] = true;
+								}
+							}
+						} finally {
+							writing.countDown();
+						}
+					}
+				}));
+			}
+			for (int r = 0; r < READERS; r++) {
+				final Random reads = new Random(seed * 31 + r);
+				results.add(threads.submit(new Runnable() {
+					public void run() {
+						await(start);
+						while (writing.getCount() > 0) {
+							int i = reads.nextInt(fixedIDs.size());
+							assertEquals(fixedDisplays.get(i), partitioned.getCellDisplayString(fixedIDs.get(i)),
+										 fixedIDs.get(i));
+							partitioned.getCellDisplayString(randomID(reads));
+						}
+					}
+				}));
+			}
+			threads.shutdown();
+			assertTrue(threads.awaitTermination(60, TimeUnit.SECONDS), "deadlock, seed " + seed);
+			// Rethrows a failure of any thread
+			for (Future<?> result : results)
+				result.get();
+			
+			for (int writer = 0; writer < WRITERS; writer++) {
+				for (int i = 0; i < ids[writer].length; i++) {
+					boolean sequentialRejected = false;
+					try {
+						sheet.setCell(ids[writer][i], contents[writer][i]);
+					} catch (RuntimeException e) {
+						sequentialRejected = true;
+					}
+					assertEquals(sequentialRejected, rejected[writer][i], "rejection of " + ids[writer][i] + " = "
+								 + contents[writer][i] + ", seed " + seed);
+				}
+			}
+			assertSameCells(sheet, partitioned, "seed " + seed);
+			for (String id : fixedIDs)
+				assertEquals(sheet.getCellDisplayString(id), partitioned.getCellDisplayString(id), id + ", seed " + seed);
+		}
+	}
+
+	// Count the latch down and wait for it to reach zero
+	private static void await(CountDownLatch latch) {
+		latch.countDown();
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Apply the edit to both sheets and check they agree on rejecting it
+	private static void edit(Spreadsheet sheet, PartitionedSheet partitioned, String id, String contents) {
+		boolean rejected = false, partitionedRejected = false;
+		try {
+			sheet.setCell(id, contents);
+		} catch (RuntimeException e) {
+			rejected = true;
+		}
+		try {
+			partitioned.setCell(id, contents);
+		} catch (RuntimeException e) {
+			partitionedRejected = true;
+		}
+		assertEquals(rejected, partitionedRejected, "rejection of " + id + " = " + contents);
+	}
+
+	private static void assertSameCells(Spreadsheet sheet, PartitionedSheet partitioned, String when) {
+		for (String id : ids()) {
+			assertEquals(sheet.getCellDisplayString(id), partitioned.getCellDisplayString(id), id + ", " + when);
+			assertEquals(sheet.getCellContents(id), partitioned.getCellContents(id), id + ", " + when);
+		}
+	}
+
+	// Every cell ID of the grid edited
+	private static List<String> ids() {
+		List<String> ids = new ArrayList<String>();
+		for (String column : COLUMNS) {
+			for (int row = 1; row <= ROWS; row++)
+				ids.add(column + row);
+		}
+		return ids;
+	}
+
+	// The cells concurrentEdits() never changes: the columns after the
+	// writers', the dense numbers and DENSE_SUM
+	private static List<String> fixedIDs() {
+		List<String> ids = new ArrayList<String>();
+		for (int column = WRITERS; column < COLUMNS.length; column++) {
+			for (int row = 1; row <= ROWS; row++)
+				ids.add(COLUMNS[column] + row);
+		}
+		for (String column : DENSE_COLUMNS) {
+			for (int row = 1; row <= DENSE_ROWS; row++)
+				ids.add(column + row);
+		}
+		ids.add(DENSE_SUM);
+		return ids;
+	}
+
+	private static String randomID(Random random) {
+		return COLUMNS[random.nextInt(COLUMNS.length)] + (1 + random.nextInt(ROWS));
+	}
+
+	// Blank, a number, a string, a formula of one or two cells, or an
+	// aggregate of a range, possibly written bottom-right first
+	private static String randomContents(Random random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return "";
+		case 1:
+		case 2:
+			return Integer.toString(random.nextInt(10));
+		case 3:
+			return "x";
+		case 4:
+			return "=" + randomID(random) + "+1";
+		case 5:
+			return "=" + randomID(random) + "*" + randomID(random);
+		default:
+			return "=" + AGGREGATES[random.nextInt(AGGREGATES.length)] + "(" + randomID(random) + ":"
+				+ randomID(random) + ")";
+		}
+	}
+
+	// Contents for the given writer of concurrentEdits(), whose
+	// formulas refer only to the columns of writers up to it and to
+	// unchanging cells. Ranges lie within the writers' columns, as a
+	// range reaching an unchanging column would cover later writers'.
+	private static String writerContents(Random random, int writer) {
+		String id = COLUMNS[random.nextInt(writer + 1)] + (1 + random.nextInt(ROWS));
+		String other = COLUMNS[random.nextInt(writer + 1)] + (1 + random.nextInt(ROWS));
+		String fixed = COLUMNS[WRITERS + random.nextInt(COLUMNS.length - WRITERS)] + (1 + random.nextInt(ROWS));
+		switch (random.nextInt(10)) {
+		case 0:
+			return "";
+		case 1:
+		case 2:
+			return Integer.toString(random.nextInt(10));
+		case 3:
+			return "x";
+		case 4:
+			return "=" + id + "+1";
+		case 5:
+			return "=" + id + "*" + other;
+		case 6:
+			return "=" + fixed + "-" + id;
+		case 7:
+			return "=" + DENSE_SUM + "-" + id + "+" + DENSE_COLUMNS[random.nextInt(DENSE_COLUMNS.length)]
+				+ (1 + random.nextInt(DENSE_ROWS));
+		default:
+			return "=" + AGGREGATES[random.nextInt(AGGREGATES.length)] + "(" + id + ":" + other + ")";
+		}
+	}
+}
@@ -0,0 +1,173 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Checks PrattFormulaParser against the ANTLR grammar it stands in
+// front of: every formula it accepts must give the tree ANTLR gives,
+// and everything it rejects must still fail when FNode falls back to
+// ANTLR. Inputs are built only from characters the ANTLR lexer
+// matches; on a lexer error FNode.FailOnErrorListener lists the
+// remaining tokens, which reports the same error again.
+class PrattFormulaParserTest {
+	static final String[] SAMPLES = {
+		"=A1 + -5.23 *(2+3+A4) / ZD11", "=22*A1 + 17*D1", "=--A1*(60*60*24)", "=A1-B1-C1/D1/E1",
+		"=(((1)))", "=1-2-3", "=8/4/2", "=-2*3", "=2*-3", "= 1 +\t2 ", "=007.50"
+	};
+	static final String[] REJECTED = {
+		"=1 ++ 2", "=A1 B1", "=", "=()", "=1+", "=(1", "=1)", "=*2", "=1 2", "A1+1", "=(1+2))", "=1*/2"
+	};
+	static final String[] NUMBERS = { "0", "7", "12", "3.25", "007", "0.5" };
+	static final String[] CELLS = { "A1", "B22", "ZD11", "AB300", "C01" };
+	static final String[] OPERATORS = { "+", "-", "*", "/" };
+	static final String[] SPACES = { "", "", "", " ", "  ", "\t" };
+
+	@Test
+	void samplesGiveTheAntlrTree() {
+		for (String formula : SAMPLES)
+			assertSameAsAntlr(formula);
+	}
+
+	@Test
+	void rejectedSamplesFailThroughAntlr() {
+		for (String formula : REJECTED)
+			assertRejected(formula);
+	}
+
+	@Test
+	void aggregatesAreParsedWithoutAntlr() {
+		FNode root = PrattFormulaParser.parse("=SUM(A1:B10) / COUNT( C3 )");
+		assertNotNull(root);
+		assertEquals(TokenType.Divide, root.type);
+		assertEquals(TokenType.Sum, root.left.type);
+		assertEquals("A1:B10", root.left.left.data);
+		assertEquals(TokenType.Count, root.right.type);
+		assertEquals("C3:C3", root.right.left.data);
+	}
+
+	@Test
+	void randomFormulasGiveTheAntlrTree() {
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++)
+			assertSameAsAntlr("=" + join(expression(random, 4)));
+	}
+
+	// Formulas with one token dropped, repeated or added at random are
+	// parsed by Pratt exactly when ANTLR accepts them
+	@Test
+	void randomMutationsAgreeWithAntlr() {
+		Random random = new Random(7);
+		for (int i = 0; i < 5000; i++) {
+			List<String> tokens = expression(random, 3);
+			int at = random.nextInt(tokens.size());
+			switch (random.nextInt(3)) {
+			case 0:
+				tokens.remove(at);
+				break;
+			case 1:
+				tokens.add(at, tokens.get(at));
+				break;
+			default:
+				tokens.add(at, token(random));
+				break;
+			}
+			String formula = "=" + join(tokens);
+			FNode antlr = antlrOrNull(formula);
+			if (antlr == null)
+				assertRejected(formula);
+			else
+				assertSameAsAntlr(formula);
+		}
+	}
+
+	private static void assertSameAsAntlr(String formula) {
+		FNode pratt = PrattFormulaParser.parse(formula);
+		assertNotNull(pratt, formula);
+		assertTrue(sameTree(FNode.parseWithAntlr(formula), pratt), formula);
+	}
+
+	private static void assertRejected(String formula) {
+		assertNull(PrattFormulaParser.parse(formula), formula);
+		try {
+			FNode.parseUncached(formula);
+			fail("ANTLR accepted " + formula);
+		} catch (RuntimeException expected) {
+		}
+	}
+
+	private static FNode antlrOrNull(String formula) {
+		try {
+			return FNode.parseWithAntlr(formula);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static boolean sameTree(FNode a, FNode b) {
+		if (a == null || b == null)
+			return a == b;
+		return a.type == b.type && a.data.equals(b.data) && sameTree(a.left, b.left) && sameTree(a.right, b.right);
+	}
+
+	// The tokens of a random valid expression nested at most depth deep
+	private static List<String> expression(Random random, int depth) {
+		List<String> tokens = new ArrayList<String>();
+		int terms = 1 + random.nextInt(3);
+		for (int t = 0; t < terms; t++) {
+			if (t > 0)
+				tokens.add(OPERATORS[random.nextInt(OPERATORS.length)]);
+			int negations = random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0;
+			for (int n = 0; n < negations; n++)
+				tokens.add("-");
+			int kind = random.nextInt(depth > 0 ? 3 : 2);
+			if (kind == 0) {
+				tokens.add(NUMBERS[random.nextInt(NUMBERS.length)]);
+			} else if (kind == 1) {
+				tokens.add(CELLS[random.nextInt(CELLS.length)]);
+			} else {
+				tokens.add("(");
+				tokens.addAll(expression(random, depth - 1));
+				tokens.add(")");
+			}
+		}
+		return tokens;
+	}
+
+	private static String token(Random random) {
+		switch (random.nextInt(4)) {
+		case 0:
+			return NUMBERS[random.nextInt(NUMBERS.length)];
+		case 1:
+			return CELLS[random.nextInt(CELLS.length)];
+		case 2:
+			return random.nextBoolean() ? "(" : ")";
+		default:
+			return OPERATORS[random.nextInt(OPERATORS.length)];
+		}
+	}
+
+	// Join tokens with random whitespace between them, keeping
+	// neighbouring numbers and cells apart so they stay two tokens
+	private static String join(List<String> tokens) {
+		Random random = new Random(tokens.hashCode());
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < tokens.size(); i++) {
+			String space = SPACES[random.nextInt(SPACES.length)];
+			if (i > 0 && space.isEmpty() && isOperand(tokens.get(i - 1)) && isOperand(tokens.get(i)))
+				space = " ";
+			sb.append(space).append(tokens.get(i));
+		}
+		return sb.toString();
+	}
+
+	private static boolean isOperand(String token) {
+		return Character.isLetterOrDigit(token.charAt(0));
+	}
+}